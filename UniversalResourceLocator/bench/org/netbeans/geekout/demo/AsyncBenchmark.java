@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Time to open many URLs at once with {@link URLs#openAsync(java.net.URL)}
+ * and {@link URLs#openAll(java.util.Collection, int)}.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AsyncBenchmark {
+    static {
+        URLs.initialize();
+    }
+    
+    @Param({ "100", "1000", "10000" })
+    public int concurrent;
+    
+    private URL url;
+    
+    @Setup
+    public void createURL() throws IOException {
+        url = new URL("geekahoj://Jarda");
+    }
+    
+    @Benchmark
+    public int openAsync() throws IOException, InterruptedException, ExecutionException {
+        @SuppressWarnings("unchecked")
+        CompletableFuture<InputStream>[] all = new CompletableFuture[concurrent];
+        for (int i = 0; i < concurrent; i++) {
+            all[i] = URLs.openAsync(url);
+        }
+        int sum = 0;
+        for (CompletableFuture<InputStream> f : all) {
+            sum += ConnectionBenchmark.drain(f.get());
+        }
+        return sum;
+    }
+    
+    @Benchmark
+    public int openAll() throws IOException, InterruptedException, ExecutionException {
+        List<CompletableFuture<InputStream>> all = URLs.openAll(
+            Collections.nCopies(concurrent, url), Runtime.getRuntime().availableProcessors()
+        );
+        int sum = 0;
+        for (CompletableFuture<InputStream> f : all) {
+            sum += ConnectionBenchmark.drain(f.get());
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Throughput of {@link URL#openConnection()} and {@link URL#openStream()}
+ * with the global proxy factory installed.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConnectionBenchmark {
+    static {
+        URLs.initialize();
+    }
+    
+    @Param({ "geekout", "geekhi", "geekciao", "geekahoj" })
+    public String protocol;
+    
+    private URL url;
+    
+    @Setup
+    public void createURL() throws IOException {
+        url = new URL(protocol + "://Jarda");
+    }
+    
+    @Benchmark
+    public URLConnection openConnection() throws IOException {
+        return url.openConnection();
+    }
+    
+    @Benchmark
+    public int openStream() throws IOException {
+        return drain(url.openStream());
+    }
+    
+    static int drain(InputStream is) throws IOException {
+        try {
+            byte[] arr = new byte[256];
+            int sum = 0;
+            for (;;) {
+                int len = is.read(arr);
+                if (len == -1) {
+                    return sum;
+                }
+                sum += len;
+            }
+        } finally {
+            is.close();
+        }
+    }
+}
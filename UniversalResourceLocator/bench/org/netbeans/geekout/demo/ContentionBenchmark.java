@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLStreamHandler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Warm resolution and stream opening shared by 1 to 64 threads.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContentionBenchmark {
+    static {
+        URLs.initialize();
+    }
+    
+    @Param({ "geekout", "geekhi", "geekciao", "geekahoj" })
+    public String protocol;
+    
+    private GlobalProxyFactory factory;
+    private URL url;
+    
+    @Setup
+    public void prepare() throws IOException {
+        factory = URLs.getFactory();
+        url = new URL(protocol + "://Jarda");
+    }
+    
+    @Benchmark @Threads(1)
+    public URLStreamHandler resolve01() {
+        return factory.createURLStreamHandler(protocol);
+    }
+    
+    @Benchmark @Threads(4)
+    public URLStreamHandler resolve04() {
+        return factory.createURLStreamHandler(protocol);
+    }
+    
+    @Benchmark @Threads(16)
+    public URLStreamHandler resolve16() {
+        return factory.createURLStreamHandler(protocol);
+    }
+    
+    @Benchmark @Threads(64)
+    public URLStreamHandler resolve64() {
+        return factory.createURLStreamHandler(protocol);
+    }
+    
+    @Benchmark @Threads(1)
+    public int openStream01() throws IOException {
+        return ConnectionBenchmark.drain(url.openStream());
+    }
+    
+    @Benchmark @Threads(4)
+    public int openStream04() throws IOException {
+        return ConnectionBenchmark.drain(url.openStream());
+    }
+    
+    @Benchmark @Threads(16)
+    public int openStream16() throws IOException {
+        return ConnectionBenchmark.drain(url.openStream());
+    }
+    
+    @Benchmark @Threads(64)
+    public int openStream64() throws IOException {
+        return ConnectionBenchmark.drain(url.openStream());
+    }
+}
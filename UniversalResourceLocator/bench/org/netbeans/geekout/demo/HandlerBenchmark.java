@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.concurrent.TimeUnit;
+import org.netbeans.geekout.demo.impl.GeekciaoConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compares ways to instantiate a registered <code>URLConnection</code>:
+ * reflective constructor lookup on each open (what {@link GenericHandler}
+ * used to do), cached method handle in {@link GenericHandler} and 
+ * the handler generated by the annotation processor. Run with
+ * <code>-prof gc</code> to see allocation per open.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HandlerBenchmark {
+    private URL reflective;
+    private URL methodHandle;
+    private URL generated;
+    
+    @Setup
+    public void createURLs() throws Exception {
+        reflective = new URL(null, "geekciao://Jarda", new ReflectiveHandler(GeekciaoConnection.class));
+        methodHandle = new URL(null, "geekciao://Jarda", new GenericHandler(GeekciaoConnection.class));
+        URLStreamHandler h = (URLStreamHandler) Class.forName(GeekciaoConnection.class.getName() + "$handler").newInstance();
+        generated = new URL(null, "geekciao://Jarda", h);
+    }
+    
+    @Benchmark
+    public URLConnection reflection() throws IOException {
+        return reflective.openConnection();
+    }
+    
+    @Benchmark
+    public URLConnection methodHandle() throws IOException {
+        return methodHandle.openConnection();
+    }
+    
+    @Benchmark
+    public URLConnection generated() throws IOException {
+        return generated.openConnection();
+    }
+    
+    private static final class ReflectiveHandler extends URLStreamHandler {
+        private final Class<? extends URLConnection> implClass;
+
+        ReflectiveHandler(Class<? extends URLConnection> implClass) {
+            this.implClass = implClass;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            try {
+                return implClass.getConstructor(URL.class).newInstance(u);
+            } catch (Exception ex) {
+                throw new IllegalStateException("Needs to have constructor with URL parameter: " + implClass, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.netbeans.geekout.demo.processor.URLProtocolRegistrationProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Time to compile many annotated types with 
+ * {@link URLProtocolRegistrationProcessor}, either all of them or just
+ * one of them against output of previous full compilation.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProcessorBenchmark {
+    @Param({ "1000", "10000" })
+    public int types;
+    
+    private Path src;
+    private Path out;
+    private List<String> sources;
+    
+    @Setup(Level.Trial)
+    public void generateSources() throws IOException {
+        src = Files.createTempDirectory("urls-src");
+        sources = new ArrayList<>();
+        for (int i = 0; i < types; i++) {
+            Path f = src.resolve("bench/Method" + i + ".java");
+            Files.createDirectories(f.getParent());
+            Files.write(f, (
+                "package bench;\n"
+                + "import java.net.URL;\n"
+                + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+                + "public class Method" + i + " {\n"
+                + "  @URLProtocolRegistration(protocol=\"bench" + i + "\")\n"
+                + "  public static String open(URL url) { return \"Hello\"; }\n"
+                + "}\n"
+            ).getBytes("UTF-8"));
+            sources.add(f.toString());
+        }
+    }
+    
+    @Setup(Level.Iteration)
+    public void cleanOutput() throws IOException {
+        out = Files.createTempDirectory("urls-out");
+    }
+    
+    @TearDown(Level.Iteration)
+    public void deleteOutput() throws IOException {
+        delete(out);
+    }
+    
+    @TearDown(Level.Trial)
+    public void deleteSources() throws IOException {
+        delete(src);
+    }
+    
+    @Benchmark
+    public boolean compileAll() {
+        return compile(sources);
+    }
+    
+    @Benchmark
+    public boolean compileOneAfterAll(Compiled all) {
+        return compile(sources.subList(0, 1));
+    }
+    
+    /** Output of full compilation made before each iteration, so only
+     * the recompilation of one type is measured.
+     */
+    @State(Scope.Benchmark)
+    public static class Compiled {
+        @Setup(Level.Iteration)
+        public void compileAll(ProcessorBenchmark bench) {
+            if (!bench.compile(bench.sources)) {
+                throw new IllegalStateException("Full compilation failed");
+            }
+        }
+    }
+    
+    private boolean compile(List<String> files) {
+        List<String> args = new ArrayList<>();
+        args.add("-classpath");
+        args.add(out + File.pathSeparator + System.getProperty("java.class.path"));
+        args.add("-processor");
+        args.add(URLProtocolRegistrationProcessor.class.getName());
+        args.add("-d");
+        args.add(out.toString());
+        args.add("-s");
+        args.add(out.toString());
+        args.addAll(files);
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        return javac.run(null, null, null, args.toArray(new String[args.size()])) == 0;
+    }
+    
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> all = Files.walk(dir)) {
+            all.sorted((a, b) -> b.compareTo(a)).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
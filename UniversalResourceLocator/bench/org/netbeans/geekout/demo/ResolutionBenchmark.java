@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.net.URLStreamHandler;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures {@link GlobalProxyFactory#createURLStreamHandler(java.lang.String)}
+ * for each registration style. <code>geekout</code> is registered as
+ * <code>ServiceProvider</code>, <code>geekhi</code> as annotated factory,
+ * <code>geekciao</code> as annotated <code>URLConnection</code> and 
+ * <code>geekahoj</code> as annotated method. <code>http</code> is bypassed
+ * and <code>geekunknown</code> is a miss.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResolutionBenchmark {
+    @Param({ "geekout", "geekhi", "geekciao", "geekahoj", "http", "geekunknown" })
+    public String protocol;
+    
+    private GlobalProxyFactory warm;
+    
+    @Setup
+    public void initWarmFactory() {
+        warm = new GlobalProxyFactory();
+        warm.createURLStreamHandler(protocol);
+    }
+
+    /** Fresh factory: reads indexes, scans classpath, loads classes. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public URLStreamHandler cold() {
+        return new GlobalProxyFactory().createURLStreamHandler(protocol);
+    }
+    
+    /** Fresh factory searching only protocols listed in the index. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public URLStreamHandler coldIndexOnly() {
+        GlobalProxyFactory f = new GlobalProxyFactory();
+        f.configureBypass(null, true);
+        return f.createURLStreamHandler(protocol);
+    }
+    
+    /** Factory that has already seen the protocol. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public URLStreamHandler warm() {
+        return warm.createURLStreamHandler(protocol);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/** Opens many URLs by a limited number of workers for
+ * {@link URLs#openAll(java.util.Collection, int)}. URLs are opened
+ * in the order they are given, so callers consuming the results in
+ * order get the first ones first.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class BatchOpen implements Runnable {
+    private final Queue<OpenTask> pending;
+
+    private BatchOpen(Queue<OpenTask> pending) {
+        this.pending = pending;
+    }
+    
+    static List<CompletableFuture<InputStream>> submit(
+        Collection<URL> urls, int parallelism, Executor executor
+    ) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism has to be positive: " + parallelism);
+        }
+        List<CompletableFuture<InputStream>> res = new ArrayList<>(urls.size());
+        Queue<OpenTask> pending = new ConcurrentLinkedQueue<>();
+        for (URL u : urls) {
+            OpenTask t = new OpenTask(u);
+            res.add(t);
+            pending.add(t);
+        }
+        BatchOpen worker = new BatchOpen(pending);
+        int workers = Math.min(parallelism, res.size());
+        for (int i = 0; i < workers; i++) {
+            executor.execute(worker);
+        }
+        return res;
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            OpenTask t = pending.poll();
+            if (t == null) {
+                return;
+            }
+            t.run();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/** Stream reading content of a buffer.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private final ProtocolMetrics metrics;
+
+    ByteBufferInputStream(ByteBuffer buffer, ProtocolMetrics metrics) {
+        this.buffer = buffer;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        metrics.read(1);
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(len, buffer.remaining());
+        buffer.get(b, off, n);
+        metrics.read(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int k = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + k);
+        return k;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /** Copies the rest of the buffer at once. Overrides 
+     * <code>InputStream.readAllBytes()</code> on JDKs that have it.
+     * @return remaining content
+     */
+    public byte[] readAllBytes() {
+        byte[] arr = new byte[buffer.remaining()];
+        buffer.get(arr);
+        metrics.read(arr.length);
+        return arr;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+
+/** Connection of a {@link URLProtocolRegistration#cacheable() cacheable}
+ * registration. Serves the content from {@link ContentCache} and creates
+ * the real connection only on a miss. Declared metadata are reported
+ * without any connection.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class CachedConnection extends URLConnection {
+    private final RegisteredHandler handler;
+    private final ProtocolMetrics metrics;
+    private ContentCache.Entry cached;
+    private URLConnection delegate;
+    private boolean delegateCounts;
+    private boolean written;
+
+    CachedConnection(URL url, RegisteredHandler handler, ProtocolMetrics metrics) {
+        super(url);
+        this.handler = handler;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public synchronized void connect() throws IOException {
+        if (connected) {
+            return;
+        }
+        cached = ContentCache.getDefault().get(url.toExternalForm());
+        if (cached != null) {
+            metrics.cacheHit();
+        } else {
+            openDelegate();
+        }
+        connected = true;
+    }
+
+    private void openDelegate() throws IOException {
+        metrics.cacheMiss();
+        try {
+            delegate = handler.createConnection(url);
+            delegateCounts = delegate instanceof MethodConnection;
+            delegate.setDoInput(getDoInput());
+            delegate.setDoOutput(getDoOutput());
+            delegate.connect();
+        } catch (IOException | RuntimeException | Error ex) {
+            metrics.failed();
+            throw ex;
+        }
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        connect();
+        if (cached != null) {
+            return new CountingInputStream(new ByteArrayInputStream(cached.data), metrics);
+        }
+        if (!written) {
+            cached = fill();
+            if (cached != null) {
+                return counting(new ByteArrayInputStream(cached.data));
+            }
+        }
+        return counting(delegate.getInputStream());
+    }
+
+    /** Counts bytes read from the real connection unless it counts them
+     * itself as {@link MethodConnection} does.
+     */
+    private InputStream counting(InputStream is) {
+        if (is == null || delegateCounts) {
+            return is;
+        }
+        return new CountingInputStream(is, metrics);
+    }
+
+    /** Reads the real connection into the cache.
+     * @return the cached entry or <code>null</code> if the content
+     *   is too big and {@link #delegate} shall be read directly
+     */
+    private ContentCache.Entry fill() throws IOException {
+        ContentCache cache = ContentCache.getDefault();
+        InputStream is = delegate.getInputStream();
+        if (is == null) {
+            return null;
+        }
+        int max = cache.maxEntryBytes();
+        byte[] arr = new byte[4096];
+        int len = 0;
+        for (;;) {
+            if (len == arr.length) {
+                if (len > max) {
+                    delegate = new Remainder(delegate,
+                        new SequenceInputStream(new ByteArrayInputStream(arr, 0, len), is)
+                    );
+                    return null;
+                }
+                arr = Arrays.copyOf(arr, len * 2);
+            }
+            int n = is.read(arr, len, arr.length - len);
+            if (n == -1) {
+                break;
+            }
+            len += n;
+        }
+        is.close();
+        byte[] data = Arrays.copyOf(arr, len);
+        return cache.put(url.toExternalForm(), data, delegate.getContentType(), delegate.getContentEncoding());
+    }
+
+    /** Output goes to the real connection and its response is not cached.
+     */
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (delegate == null) {
+            openDelegate();
+            cached = null;
+            connected = true;
+        }
+        written = true;
+        return delegate.getOutputStream();
+    }
+
+    @Override
+    public Object getContent(Class[] classes) throws IOException {
+        connect();
+        if (cached == null) {
+            return delegate.getContent(classes);
+        }
+        return super.getContent(classes);
+    }
+
+    @Override
+    public String getContentType() {
+        String declared = handler.declaredHeader("content-type");
+        if (declared != null) {
+            return declared;
+        }
+        try {
+            connect();
+        } catch (IOException ex) {
+            return null;
+        }
+        return cached != null ? cached.contentType : delegate.getContentType();
+    }
+
+    @Override
+    public String getContentEncoding() {
+        String declared = handler.declaredHeader("content-encoding");
+        if (declared != null) {
+            return declared;
+        }
+        try {
+            connect();
+        } catch (IOException ex) {
+            return null;
+        }
+        return cached != null ? cached.contentEncoding : delegate.getContentEncoding();
+    }
+
+    @Override
+    public long getContentLengthLong() {
+        String declared = handler.declaredHeader("content-length");
+        if (declared != null) {
+            return Long.parseLong(declared);
+        }
+        try {
+            connect();
+        } catch (IOException ex) {
+            return -1;
+        }
+        return cached != null ? cached.data.length : delegate.getContentLengthLong();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        String declared = handler.declaredHeader(name);
+        if (declared != null) {
+            return declared;
+        }
+        try {
+            connect();
+        } catch (IOException ex) {
+            return null;
+        }
+        if (cached == null) {
+            return delegate.getHeaderField(name);
+        }
+        if ("content-type".equalsIgnoreCase(name)) {
+            return getContentType();
+        }
+        if ("content-encoding".equalsIgnoreCase(name)) {
+            return getContentEncoding();
+        }
+        if ("content-length".equalsIgnoreCase(name)) {
+            return Integer.toString(cached.data.length);
+        }
+        return null;
+    }
+
+    /** Real connection whose beginning has already been read
+     * into memory while trying to cache it.
+     */
+    private static final class Remainder extends URLConnection {
+        private final URLConnection real;
+        private final InputStream is;
+
+        Remainder(URLConnection real, InputStream is) {
+            super(real.getURL());
+            this.real = real;
+            this.is = is;
+            this.connected = true;
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return is;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return real.getOutputStream();
+        }
+
+        @Override
+        public String getContentType() {
+            return real.getContentType();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return real.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return real.getContentLengthLong();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return real.getHeaderField(name);
+        }
+    }
+}
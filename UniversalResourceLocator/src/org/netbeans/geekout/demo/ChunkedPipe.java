@@ -0,0 +1,255 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/** Bounded pipe passing data written to a connection to the method
+ * reading them. Data travel in chunks and at most {@link #CHUNKS} of
+ * them are queued, so the writer blocks until the reader catches up.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class ChunkedPipe {
+    static final int CHUNKS = 16;
+    static final int DEFAULT_CHUNK = 8192;
+    
+    private final Queue<byte[]> chunks = new ArrayDeque<>();
+    private final int chunkSize;
+    private final long fixedLength;
+    private final ProtocolMetrics metrics;
+    private boolean writerClosed;
+    private boolean readerClosed;
+    /** the computation reading the data */
+    private volatile Future<?> reader;
+    
+    final Out out = new Out();
+    final In in = new In();
+
+    /** Creates the pipe.
+     * @param chunkSize size of a chunk, or non-positive to use default
+     * @param fixedLength exact number of bytes to be written or <code>-1</code>
+     * @param metrics where to report written bytes
+     */
+    ChunkedPipe(int chunkSize, long fixedLength, ProtocolMetrics metrics) {
+        this.chunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK;
+        this.fixedLength = fixedLength;
+        this.metrics = metrics;
+    }
+    
+    /** Connects the computation reading {@link #in}. Closing {@link #out}
+     * waits for its completion.
+     */
+    void readBy(Future<?> reader) {
+        this.reader = reader;
+    }
+    
+    /** Waits for the computation and rethrows its failure.
+     * @return result of the computation
+     */
+    static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException ex) {
+            Throwable t = ex.getCause();
+            if (t instanceof IOException) {
+                throw (IOException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new IOException(t);
+        }
+    }
+    
+    private synchronized void put(byte[] chunk) throws IOException {
+        while (chunks.size() >= CHUNKS && !readerClosed) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (readerClosed) {
+            throw new IOException("Reader has been closed");
+        }
+        chunks.add(chunk);
+        notifyAll();
+    }
+    
+    private synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+    
+    private synchronized byte[] take() throws IOException {
+        for (;;) {
+            if (readerClosed) {
+                throw new IOException("Stream closed");
+            }
+            byte[] chunk = chunks.poll();
+            if (chunk != null) {
+                notifyAll();
+                return chunk;
+            }
+            if (writerClosed) {
+                return null;
+            }
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+    
+    private synchronized void closeReader() {
+        readerClosed = true;
+        chunks.clear();
+        notifyAll();
+    }
+    
+    /** Output stream collecting bytes into chunks. Not thread safe, like
+     * any other output stream of a connection.
+     */
+    final class Out extends OutputStream {
+        private byte[] buffer;
+        private int pos;
+        private long written;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (fixedLength >= 0 && written + len > fixedLength) {
+                throw new IOException("Exceeds fixed length of " + fixedLength + " bytes");
+            }
+            written += len;
+            while (len > 0) {
+                if (buffer == null) {
+                    buffer = new byte[chunkSize];
+                }
+                int n = Math.min(len, buffer.length - pos);
+                System.arraycopy(b, off, buffer, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+                if (pos == buffer.length) {
+                    flush();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pos > 0) {
+                byte[] chunk = pos == buffer.length ? buffer : Arrays.copyOf(buffer, pos);
+                buffer = null;
+                pos = 0;
+                put(chunk);
+                metrics.written(chunk.length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            try {
+                flush();
+                if (fixedLength >= 0 && written != fixedLength) {
+                    throw new IOException("Only " + written + " bytes written out of " + fixedLength);
+                }
+            } finally {
+                closed = true;
+                closeWriter();
+            }
+            Future<?> f = reader;
+            if (f != null) {
+                await(f);
+            }
+        }
+    }
+    
+    /** Input stream handed to the method. */
+    final class In extends InputStream {
+        private byte[] chunk;
+        private int pos;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (chunk == null || pos == chunk.length) {
+                chunk = take();
+                pos = 0;
+                if (chunk == null) {
+                    return -1;
+                }
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null ? 0 : chunk.length - pos;
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** Flight recorder event emitted when {@link MethodConnection} calls
+ * the registered method.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@Name("org.netbeans.geekout.demo.Connect")
+@Label("URL Connect")
+@Description("Invocation of the method providing content of a connection")
+@Category({ "URLs" })
+final class ConnectEvent extends jdk.jfr.Event {
+    @Label("Protocol")
+    String protocol;
+    
+    @Label("Implementation")
+    String implementation;
+    
+    @Label("URL")
+    String url;
+    
+    @Label("Content")
+    @Description("Type of value returned by the method")
+    String content;
+    
+    @Label("Failed")
+    boolean failed;
+}
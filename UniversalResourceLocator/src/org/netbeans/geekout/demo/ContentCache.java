@@ -0,0 +1,180 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Size bounded cache of content of {@link URLProtocolRegistration#cacheable()
+ * cacheable} registrations keyed by URL. The cache is split into
+ * independently locked segments, each evicting least recently used
+ * entries once their total size exceeds its share of the limit.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class ContentCache {
+    static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+    private static final int SEGMENTS = 16;
+    private static volatile ContentCache DEFAULT = new ContentCache(DEFAULT_MAX_BYTES, 0);
+
+    private final Segment[] segments;
+    private final long segmentMaxBytes;
+    private final long ttlNanos;
+
+    ContentCache(long maxBytes, long ttlNanos) {
+        if (maxBytes < 0 || ttlNanos < 0) {
+            throw new IllegalArgumentException("Negative limits: " + maxBytes + ", " + ttlNanos);
+        }
+        this.segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+        this.segmentMaxBytes = maxBytes / SEGMENTS;
+        this.ttlNanos = ttlNanos;
+    }
+    
+    static ContentCache getDefault() {
+        return DEFAULT;
+    }
+    
+    static void configure(long maxBytes, long ttl, TimeUnit unit) {
+        DEFAULT = new ContentCache(maxBytes, unit.toNanos(ttl));
+    }
+    
+    /** Largest content that can be cached.
+     * @return size in bytes
+     */
+    int maxEntryBytes() {
+        return (int) Math.min(Integer.MAX_VALUE - 8, segmentMaxBytes);
+    }
+    
+    Entry get(String url) {
+        Segment s = segment(url);
+        synchronized (s) {
+            Entry e = s.get(url);
+            if (e == null) {
+                return null;
+            }
+            if (e.expires != 0 && e.expires - System.nanoTime() <= 0) {
+                s.remove(url);
+                s.bytes -= e.data.length;
+                return null;
+            }
+            return e;
+        }
+    }
+    
+    /** Remembers the content.
+     * @return entry with the content, even if it is too big to be kept
+     */
+    Entry put(String url, byte[] data, String contentType, String contentEncoding) {
+        long expires = ttlNanos == 0 ? 0 : (System.nanoTime() + ttlNanos) | 1;
+        Entry e = new Entry(data, contentType, contentEncoding, expires);
+        if (data.length > segmentMaxBytes) {
+            return e;
+        }
+        Segment s = segment(url);
+        synchronized (s) {
+            Entry prev = s.put(url, e);
+            if (prev != null) {
+                s.bytes -= prev.data.length;
+            }
+            s.bytes += data.length;
+            Iterator<Entry> it = s.values().iterator();
+            while (s.bytes > segmentMaxBytes) {
+                s.bytes -= it.next().data.length;
+                it.remove();
+            }
+        }
+        return e;
+    }
+    
+    /** Removes all cached content of given protocol.
+     */
+    void invalidate(String protocol) {
+        String prefix = protocol + ':';
+        for (Segment s : segments) {
+            synchronized (s) {
+                Iterator<Map.Entry<String,Entry>> it = s.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String,Entry> e = it.next();
+                    if (e.getKey().startsWith(prefix)) {
+                        s.bytes -= e.getValue().data.length;
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+    
+    void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.clear();
+                s.bytes = 0;
+            }
+        }
+    }
+    
+    /** @return total size of cached content */
+    long size() {
+        long sum = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                sum += s.bytes;
+            }
+        }
+        return sum;
+    }
+    
+    private Segment segment(String url) {
+        int h = url.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+    
+    static final class Entry {
+        final byte[] data;
+        final String contentType;
+        final String contentEncoding;
+        final long expires;
+
+        Entry(byte[] data, String contentType, String contentEncoding, long expires) {
+            this.data = data;
+            this.contentType = contentType;
+            this.contentEncoding = contentEncoding;
+            this.expires = expires;
+        }
+    }
+    
+    /** Access ordered map, guarded by its own monitor. */
+    private static final class Segment extends LinkedHashMap<String,Entry> {
+        long bytes;
+
+        Segment() {
+            super(16, 0.75f, true);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLStreamHandler;
+import java.nio.channels.ReadableByteChannel;
+
+/** Emits flight recorder events if the <code>jdk.jfr</code> module is
+ * present. Availability is checked once; the event classes are only
+ * referenced from {@link Jfr}, which is not loaded otherwise, so the
+ * library works on runtimes without flight recorder. Events are passed
+ * around as {@link Object}, <code>null</code> when not available.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class Events {
+    /** is <code>jdk.jfr</code> present? */
+    static final boolean AVAILABLE;
+    static {
+        boolean available;
+        try {
+            Class.forName("jdk.jfr.Event", false, Events.class.getClassLoader());
+            available = true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            available = false;
+        }
+        AVAILABLE = available;
+    }
+    
+    private Events() {
+    }
+    
+    static Object beginResolution() {
+        return AVAILABLE ? Jfr.beginResolution() : null;
+    }
+    
+    static void endResolution(Object event, String protocol, ProtocolStatistics.Source source, URLStreamHandler res, ClassLoader loader) {
+        if (event != null) {
+            Jfr.endResolution(event, protocol, source, res, loader);
+        }
+    }
+    
+    static Object beginOpen() {
+        return AVAILABLE ? Jfr.beginOpen() : null;
+    }
+    
+    static void endOpen(Object event, URL u, RegisteredHandler handler, boolean cacheable, boolean failed) {
+        if (event != null) {
+            Jfr.endOpen(event, u, handler, cacheable, failed);
+        }
+    }
+    
+    static Object beginConnect() {
+        return AVAILABLE ? Jfr.beginConnect() : null;
+    }
+    
+    static void endConnect(Object event, URL url, Class<?> implementation, Object content, boolean failed) {
+        if (event != null) {
+            Jfr.endConnect(event, url, implementation, content, failed);
+        }
+    }
+    
+    static InputStream traceRead(InputStream is, URL url, Class<?> implementation) {
+        return AVAILABLE ? Jfr.traceRead(is, url, implementation) : is;
+    }
+    
+    static ReadableByteChannel traceRead(ReadableByteChannel ch, URL url, Class<?> implementation) {
+        return AVAILABLE ? Jfr.traceRead(ch, url, implementation) : ch;
+    }
+    
+    /** The only code touching the event classes. */
+    private static final class Jfr {
+        static Object beginResolution() {
+            ResolutionEvent event = new ResolutionEvent();
+            event.begin();
+            return event;
+        }
+        
+        static Object beginOpen() {
+            OpenEvent event = new OpenEvent();
+            event.begin();
+            return event;
+        }
+        
+        static Object beginConnect() {
+            ConnectEvent event = new ConnectEvent();
+            event.begin();
+            return event;
+        }
+        
+        static InputStream traceRead(InputStream is, URL url, Class<?> implementation) {
+            return ReadEvent.trace(is, url, implementation);
+        }
+        
+        static ReadableByteChannel traceRead(ReadableByteChannel ch, URL url, Class<?> implementation) {
+            return ReadEvent.trace(ch, url, implementation);
+        }
+        
+        static void endResolution(Object e, String protocol, ProtocolStatistics.Source source, URLStreamHandler res, ClassLoader loader) {
+            ResolutionEvent event = (ResolutionEvent) e;
+            event.end();
+            if (event.shouldCommit()) {
+                event.protocol = protocol;
+                event.source = source.name();
+                event.implementation = res instanceof RegisteredHandler ? 
+                    ((RegisteredHandler) res).implementation() : 
+                    res == null ? null : res.getClass().getName();
+                event.loader = String.valueOf(loader);
+                event.commit();
+            }
+        }
+        
+        static void endOpen(Object e, URL u, RegisteredHandler handler, boolean cacheable, boolean failed) {
+            OpenEvent event = (OpenEvent) e;
+            event.end();
+            if (event.shouldCommit()) {
+                event.protocol = u.getProtocol();
+                event.implementation = handler.implementation();
+                event.url = u.toExternalForm();
+                event.cacheable = cacheable;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+        
+        static void endConnect(Object e, URL url, Class<?> implementation, Object content, boolean failed) {
+            ConnectEvent event = (ConnectEvent) e;
+            event.end();
+            if (event.shouldCommit()) {
+                event.protocol = url.getProtocol();
+                event.implementation = implementation.getName();
+                event.url = url.toExternalForm();
+                event.content = content == null ? null : content.getClass().getName();
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+}
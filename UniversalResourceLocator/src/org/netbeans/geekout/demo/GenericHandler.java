@@ -24,30 +24,46 @@
 package org.netbeans.geekout.demo;
 
 import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.net.URL;
 import java.net.URLConnection;
-import java.net.URLStreamHandler;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
-/**
+/** Handler for {@link URLConnection} classes without generated handler.
+ * The constructor is looked up once, when the handler is created.
  *
  * @author Jaroslav Tulach <jtulach@netbeans.org>
  */
-final class GenericHandler extends URLStreamHandler {
-    private final Class<? extends URLConnection> implClass;
+final class GenericHandler extends RegisteredHandler {
+    private final MethodHandle constructor;
+    private final String implementation;
 
     public GenericHandler(Class<? extends URLConnection> implClass) {
-        this.implClass = implClass;
+        this.implementation = implClass.getName();
+        try {
+            this.constructor = MethodHandles.publicLookup().findConstructor(
+                implClass, MethodType.methodType(void.class, URL.class)
+            ).asType(MethodType.methodType(URLConnection.class, URL.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new IllegalArgumentException("Needs to have public constructor with URL parameter: " + implClass, ex);
+        }
     }
 
     @Override
-    protected URLConnection openConnection(URL u) throws IOException {
+    protected URLConnection createConnection(URL u) throws IOException {
         try {
-            return implClass.getConstructor(URL.class).newInstance(u);
-        } catch (Exception ex) {
-            throw new IllegalStateException("Needs to have constructor with URL parameter: " + implClass, ex);
+            return (URLConnection) constructor.invokeExact(u);
+        } catch (IOException | RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IOException(ex);
         }
     }
+
+    @Override
+    String implementation() {
+        return implementation;
+    }
     
 }
@@ -24,16 +24,45 @@
 package org.netbeans.geekout.demo;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.ref.SoftReference;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.net.URLStreamHandlerFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarEntry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,76 +71,733 @@ import java.util.logging.Logger;
  * @author Jaroslav Tulach <jtulach@netbeans.org>
  */
 final class GlobalProxyFactory implements URLStreamHandlerFactory {
+    /** aggregated index of registrations generated by the processor */
+    static final String INDEX = "META-INF/urls.index";
+    private static final String SERVICES = "META-INF/services/" + URLStreamHandlerFactory.class.getName();
+    /** protocols handled by the JDK itself, the annotation processor
+     * warns about registrations of these */
+    static final String[] DEFAULT_BYPASS = { 
+        "file", "jar", "jrt", "http", "https", "ftp", "mailto", "netdoc" 
+    };
+    /** protocols the JDK needs to load classes and resources. When bypassed
+     * they are answered before anything is read from the classpath, as
+     * reading the index or registries needs them.
+     */
+    private static final Set<String> LOADER_PROTOCOLS = new HashSet<String>(Arrays.asList(
+        "file", "jar", "jrt"
+    ));
+    /** number of missed protocols remembered per classloader */
+    static final int MAX_MISSES = 256;
+    /** set while the current thread reads the index or registries. Protocols
+     * asked for meanwhile, e.g. by class loading, are left to the JDK.
+     */
+    private static final ThreadLocal<Boolean> LOADING = new ThreadLocal<Boolean>();
+    /** comma separated list of additional protocols to bypass */
+    static final String BYPASS_PROPERTY = "org.netbeans.geekout.demo.bypass";
+    
+    /** table of the classloader that loaded this library */
+    private volatile Table defaultTable;
+    /** tables of other context classloaders. Keys are weak and tables
+     * soft, as handlers in a table reference classes of its loader.
+     */
+    private final Map<ClassLoader,SoftReference<Table>> tables;
+    /** the entry of {@link #tables} used most recently, checked without
+     * locking as threads of one application keep asking for the same table
+     */
+    private volatile SoftReference<Table> lastTable;
+    /** handlers and factories registered at runtime. The map is never
+     * modified, registration replaces it by an updated copy.
+     */
+    private final AtomicReference<Map<String,Object>> registered;
+    /** protocols left to the JDK unless registered at runtime */
+    private volatile Set<String> bypass;
+    /** when true, only protocols in the index are searched for */
+    private volatile boolean indexOnly;
 
     public GlobalProxyFactory() {
+        defaultTable = new Table(GlobalProxyFactory.class.getClassLoader());
+        tables = new WeakHashMap<ClassLoader,SoftReference<Table>>();
+        registered = new AtomicReference<Map<String,Object>>(Collections.<String,Object>emptyMap());
+        configureBypass(null, false);
     }
 
     @Override
-    public URLStreamHandler createURLStreamHandler(String protocol) {
-        if (protocol.equals("file") || protocol.equals("jar")) {
-            return null;
+    public URLStreamHandler createURLStreamHandler(final String protocol) {
+        Table t = table();
+        if (!registered.get().containsKey(protocol)) {
+            boolean bypassed = bypass.contains(protocol);
+            if ((bypassed && LOADER_PROTOCOLS.contains(protocol)) || LOADING.get() != null) {
+                return null;
+            }
+            if (
+                (indexOnly || bypassed) &&
+                !t.registries().containsKey(protocol) && !t.index().containsKey(protocol)
+            ) {
+                return null;
+            }
         }
-        
-        URLStreamHandler res = seekInProtocols(protocol);
-        if (res != null) {
-            return res;
+        return t.handler(protocol);
+    }
+    
+    /** Configures protocols that are not searched for. Bypassed protocols
+     * are still served when registered at runtime, listed in {@link #INDEX}
+     * or provided by a {@link ProtocolRegistry}: an explicit registration
+     * wins over the bypass, only the slower searches are skipped. Bypassed
+     * <code>file</code>, <code>jar</code> and <code>jrt</code> are answered
+     * without reading the index or registries at all, as reading them
+     * needs these protocols.
+     * @param protocols protocols to leave to the JDK or <code>null</code>
+     *   for {@link #DEFAULT_BYPASS} and the ones listed in 
+     *   {@link #BYPASS_PROPERTY}
+     * @param indexOnly search only protocols listed in {@link #INDEX}
+     *   or provided by a {@link ProtocolRegistry}
+     */
+    void configureBypass(Collection<String> protocols, boolean indexOnly) {
+        Set<String> set = new HashSet<String>();
+        if (protocols == null) {
+            set.addAll(Arrays.asList(DEFAULT_BYPASS));
+            String extra = System.getProperty(BYPASS_PROPERTY);
+            if (extra != null) {
+                for (String p : extra.split(",")) {
+                    if (!p.trim().isEmpty()) {
+                        set.add(p.trim());
+                    }
+                }
+            }
+        } else {
+            set.addAll(protocols);
         }
-        return seekInServices(protocol);
+        this.bypass = Collections.unmodifiableSet(set);
+        this.indexOnly = indexOnly;
+    }
+    
+    /** Table for the context classloader of current thread. Registrations
+     * are searched in the context classloader, so each application in
+     * a container sees its own protocols.
+     */
+    private Table table() {
+        Table def = defaultTable;
+        ClassLoader l = Thread.currentThread().getContextClassLoader();
+        if (l == null || l == def.loader) {
+            return def;
+        }
+        SoftReference<Table> last = lastTable;
+        Table t = last == null ? null : last.get();
+        if (t != null && t.loader == l) {
+            return t;
+        }
+        synchronized (tables) {
+            SoftReference<Table> ref = tables.get(l);
+            t = ref == null ? null : ref.get();
+            if (t == null) {
+                t = new Table(l);
+                ref = new SoftReference<Table>(t);
+                tables.put(l, ref);
+            }
+            lastTable = ref;
+            return t;
+        }
+    }
+    
+    private List<Table> allTables() {
+        List<Table> all = new ArrayList<Table>();
+        all.add(defaultTable);
+        synchronized (tables) {
+            for (SoftReference<Table> ref : tables.values()) {
+                Table t = ref.get();
+                if (t != null) {
+                    all.add(t);
+                }
+            }
+        }
+        return all;
     }
 
-    private URLStreamHandler seekInServices(String protocol) {
-        ServiceLoader<URLStreamHandlerFactory> res = ServiceLoader.load(URLStreamHandlerFactory.class);
-        for (URLStreamHandlerFactory f : res) {
-            URLStreamHandler handler = f.createURLStreamHandler(protocol);
-            if (handler != null) {
-                return handler;
+    /** Registers {@link URLStreamHandler} or {@link URLStreamHandlerFactory}
+     * for given protocol, replacing previous registration, if any.
+     * @param protocol the protocol
+     * @param handlerOrFactory the handler or the factory, <code>null</code>
+     *   to remove the registration
+     */
+    void register(String protocol, Object handlerOrFactory) {
+        for (;;) {
+            Map<String,Object> prev = registered.get();
+            if (handlerOrFactory == null && !prev.containsKey(protocol)) {
+                return;
+            }
+            Map<String,Object> next = new HashMap<String,Object>(prev);
+            if (handlerOrFactory == null) {
+                next.remove(protocol);
+            } else {
+                next.put(protocol, handlerOrFactory);
+            }
+            if (registered.compareAndSet(prev, Collections.unmodifiableMap(next))) {
+                break;
             }
         }
-        return null;
+        invalidate(protocol);
+    }
+    
+    /** Forgets cached handler (or miss) for given protocol in all
+     * classloaders.
+     * @param protocol the protocol to resolve again on next request
+     */
+    void invalidate(String protocol) {
+        for (Table t : allTables()) {
+            t.cache.remove(protocol);
+            t.forgetMiss(protocol);
+        }
     }
 
-    private URLStreamHandler seekInProtocols(String protocol) {
-        try {
-            Enumeration<URL> urls = GlobalProxyFactory.class.getClassLoader().getResources("META-INF/urls/" + protocol);
-            while (urls.hasMoreElements()) {
-                URL url = urls.nextElement();
-                for (String line : lines(url)) {
-                    if (line.startsWith("#")) {
-                        continue;
+    /** Is the protocol remembered as a miss in the current classloader?
+     */
+    boolean isMiss(String protocol) {
+        return table().isMiss(protocol);
+    }
+
+    /** Forgets all cached handlers and misses.
+     */
+    void invalidateAll() {
+        defaultTable = new Table(defaultTable.loader);
+        synchronized (tables) {
+            tables.clear();
+            lastTable = null;
+        }
+    }
+
+    private URLStreamHandler seekInRegistered(String protocol) {
+        Object reg = registered.get().get(protocol);
+        if (reg instanceof URLStreamHandlerFactory) {
+            return ((URLStreamHandlerFactory) reg).createURLStreamHandler(protocol);
+        }
+        return (URLStreamHandler) reg;
+    }
+    
+    /** Discovers all registrations visible to the context classloader
+     * and resolves them. Index files and <code>META-INF/urls/</code> 
+     * folders are read in parallel, then each found protocol is resolved
+     * in parallel too.
+     * 
+     * @param pool the pool to execute the work in
+     * @return all protocols found
+     */
+    Set<String> preload(ForkJoinPool pool) {
+        long start = System.nanoTime();
+        Set<String> protocols = pool.invoke(table().new Preload());
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Logger.getLogger(GlobalProxyFactory.class.getName()).log(
+            Level.INFO, "Preloaded {0} protocols in {1} ms", new Object[] { protocols.size(), ms }
+        );
+        return protocols;
+    }
+    
+    /** Handlers resolved for one classloader.
+     */
+    private final class Table {
+        final ClassLoader loader;
+        /** lazily loaded content of all {@link GlobalProxyFactory#INDEX} files of the loader */
+        private volatile Map<String,List<Entry>> index;
+        /** generated registries of the loader per protocol they provide */
+        private volatile Map<String,List<ProtocolRegistry>> registries;
+        /** resolved handlers (or pending resolutions) per protocol.
+         * The first thread asking for a protocol installs a task and runs it,
+         * everyone else just waits for its result.
+         */
+        final ConcurrentMap<String,Future<URLStreamHandler>> cache;
+        /** recently missed protocols, at most {@link GlobalProxyFactory#MAX_MISSES} of them,
+         * so arbitrary protocol strings cannot grow the table
+         */
+        private final Map<String,Boolean> misses;
+
+        Table(ClassLoader loader) {
+            this.loader = loader;
+            this.cache = new ConcurrentHashMap<String,Future<URLStreamHandler>>();
+            this.misses = new LinkedHashMap<String,Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+                    return size() > MAX_MISSES;
+                }
+            };
+        }
+        
+        boolean isMiss(String protocol) {
+            synchronized (misses) {
+                return misses.get(protocol) != null;
+            }
+        }
+        
+        void forgetMiss(String protocol) {
+            synchronized (misses) {
+                misses.remove(protocol);
+            }
+        }
+        
+        URLStreamHandler handler(final String protocol) {
+            if (isMiss(protocol)) {
+                return null;
+            }
+            Future<URLStreamHandler> f = cache.get(protocol);
+            boolean owner = false;
+            if (f == null) {
+                FutureTask<URLStreamHandler> task = new FutureTask<URLStreamHandler>(new Callable<URLStreamHandler>() {
+                    @Override
+                    public URLStreamHandler call() throws Exception {
+                        return resolve(protocol);
+                    }
+                });
+                f = cache.putIfAbsent(protocol, task);
+                if (f == null) {
+                    f = task;
+                    task.run();
+                    owner = true;
+                }
+            }
+            try {
+                URLStreamHandler h = f.get();
+                if (h == null && owner) {
+                    synchronized (misses) {
+                        misses.put(protocol, Boolean.TRUE);
+                    }
+                    cache.remove(protocol, f);
+                }
+                return h;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return resolve(protocol);
+            } catch (ExecutionException ex) {
+                cache.remove(protocol, f);
+                Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, null, ex.getCause());
+                return null;
+            }
+        }
+
+        private URLStreamHandler resolve(String protocol) {
+            Object event = Events.beginResolution();
+            long start = System.nanoTime();
+            ProtocolStatistics.Source source;
+            URLStreamHandler res = seekInRegistered(protocol);
+            if (res != null) {
+                source = ProtocolStatistics.Source.REGISTERED;
+            } else if ((res = seekInRegistries(protocol)) != null) {
+                source = ProtocolStatistics.Source.REGISTRY;
+            } else {
+                List<Entry> indexed = index().get(protocol);
+                if (indexed != null) {
+                    res = seekInIndex(protocol, indexed);
+                    source = ProtocolStatistics.Source.INDEX;
+                } else {
+                    res = seekInProtocols(protocol);
+                    source = ProtocolStatistics.Source.ANNOTATION;
+                }
+            }
+            if (res == null) {
+                res = seekInServices(protocol);
+                source = res == null ? ProtocolStatistics.Source.MISS : ProtocolStatistics.Source.SERVICE_LOADER;
+            }
+            ProtocolMetrics m = res != null ? ProtocolMetrics.of(protocol) : ProtocolMetrics.existing(protocol);
+            if (m != null) {
+                m.resolved(source, System.nanoTime() - start);
+            }
+            Events.endResolution(event, protocol, source, res, loader);
+            return res;
+        }
+
+        /** Consults factories registered in <code>META-INF/services</code>.
+         * Honors <code>#position=n</code> lines as written by 
+         * <code>@ServiceProvider</code> and loads the factories one by one,
+         * so the ones following the first successful one are never touched.
+         */
+        private URLStreamHandler seekInServices(String protocol) {
+            List<Entry> factories = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            try {
+                for (URL url : resources(SERVICES)) {
+                    Entry last = null;
+                    for (String line : lines(url)) {
+                        if (line.startsWith("#position=")) {
+                            if (last != null) {
+                                last.position = Integer.parseInt(line.substring(10).trim());
+                            }
+                            continue;
+                        }
+                        int comment = line.indexOf('#');
+                        if (comment >= 0) {
+                            line = line.substring(0, comment).trim();
+                        }
+                        last = null;
+                        if (!line.isEmpty() && seen.add(line)) {
+                            last = new Entry(protocol, Entry.FACTORY, line, null);
+                            factories.add(last);
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            Collections.sort(factories, Entry.BY_POSITION);
+            for (Entry e : factories) {
+                try {
+                    Class<?> c = Class.forName(e.className, true, loader);
+                    URLStreamHandlerFactory f = (URLStreamHandlerFactory) c.newInstance();
+                    URLStreamHandler handler = f.createURLStreamHandler(protocol);
+                    if (handler != null) {
+                        return handler;
                     }
-                    final Class<?> implClass = Class.forName(line);
-                    if (URLStreamHandlerFactory.class.isAssignableFrom(implClass)) {
-                        Object instance = implClass.newInstance();
-                        URLStreamHandlerFactory f = (URLStreamHandlerFactory)instance;
-                        URLStreamHandler handler = f.createURLStreamHandler(protocol);
+                } catch (Exception | LinkageError ex) {
+                    Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, "Cannot use " + e.className, ex);
+                }
+            }
+            return null;
+        }
+
+        private URLStreamHandler seekInProtocols(String protocol) {
+            try {
+                for (URL url : resources("META-INF/urls/" + protocol)) {
+                    for (String line : lines(url)) {
+                        if (line.startsWith("#")) {
+                            continue;
+                        }
+                        final Class<?> implClass = Class.forName(line, true, loader);
+                        URLStreamHandler handler = createHandler(protocol, implClass);
                         if (handler != null) {
                             return handler;
                         }
                     }
-                    if (URLConnection.class.isAssignableFrom(implClass)) {
-                        return new GenericHandler(implClass.asSubclass(URLConnection.class));
+                }
+            } catch (Exception ex) {
+                Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            return null;
+        }
+
+        /** Tries registrations of all registries in order of their 
+         * positions, so registrations in different JARs are ordered the
+         * same way as in the index. Equal positions keep classpath order.
+         */
+        private URLStreamHandler seekInRegistries(String protocol) {
+            List<ProtocolRegistry> registries = registries().get(protocol);
+            if (registries == null) {
+                return null;
+            }
+            List<int[]> candidates = new ArrayList<>();
+            for (int r = 0; r < registries.size(); r++) {
+                int[] positions = registries.get(r).positions(protocol);
+                for (int i = 0; i < positions.length; i++) {
+                    candidates.add(new int[] { positions[i], r, i });
+                }
+            }
+            Collections.sort(candidates, (a, b) -> Integer.compare(a[0], b[0]));
+            for (int[] c : candidates) {
+                ProtocolRegistry r = registries.get(c[1]);
+                try {
+                    URLStreamHandler handler = r.create(protocol, c[2]);
+                    if (handler != null) {
+                        return handler;
                     }
+                } catch (RuntimeException | LinkageError ex) {
+                    Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, "Cannot use " + r, ex);
                 }
             }
-        } catch (Exception ex) {
-            Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+
+        private URLStreamHandler seekInIndex(String protocol, List<Entry> entries) {
+            for (Entry e : entries) {
+                try {
+                    if (Entry.FACTORY.equals(e.kind)) {
+                        URLStreamHandler handler = createHandler(protocol, Class.forName(e.className, true, loader).asSubclass(URLStreamHandlerFactory.class));
+                        if (handler != null) {
+                            return handler;
+                        }
+                    }
+                    if (Entry.CONNECTION.equals(e.kind)) {
+                        if (e.handler != null) {
+                            return Class.forName(e.handler, true, loader).asSubclass(URLStreamHandler.class).newInstance();
+                        }
+                        return new GenericHandler(Class.forName(e.className, true, loader).asSubclass(URLConnection.class));
+                    }
+                } catch (Exception ex) {
+                    Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, "Cannot use " + e.className, ex);
+                }
+            }
+            return null;
+        }
+
+        /** Instantiates all {@link ProtocolRegistry registries} of the loader once.
+         * @return map from protocol to registries providing it
+         */
+        private Map<String,List<ProtocolRegistry>> registries() {
+            Map<String,List<ProtocolRegistry>> res = registries;
+            if (res != null) {
+                return res;
+            }
+            synchronized (this) {
+                if (registries != null) {
+                    return registries;
+                }
+                Map<String,List<ProtocolRegistry>> map = new HashMap<>();
+                Boolean prev = LOADING.get();
+                LOADING.set(Boolean.TRUE);
+                try {
+                    loadRegistries(map);
+                } finally {
+                    LOADING.set(prev);
+                }
+                registries = res = Collections.unmodifiableMap(map);
+                return res;
+            }
+        }
+        
+        private void loadRegistries(Map<String,List<ProtocolRegistry>> map) {
+            Iterator<ProtocolRegistry> it = ServiceLoader.load(ProtocolRegistry.class, loader).iterator();
+            for (;;) {
+                try {
+                    if (!it.hasNext()) {
+                        break;
+                    }
+                    ProtocolRegistry r = it.next();
+                    for (String p : r.protocols()) {
+                        List<ProtocolRegistry> arr = map.get(p);
+                        if (arr == null) {
+                            arr = new ArrayList<>();
+                            map.put(p, arr);
+                        }
+                        arr.add(r);
+                    }
+                } catch (ServiceConfigurationError ex) {
+                    Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        private Map<String,List<Entry>> index() {
+            Map<String,List<Entry>> res = index;
+            return res != null ? res : readAllIndexes();
+        }
+        
+        /** Reads all {@link GlobalProxyFactory#INDEX} files of the loader in a single pass.
+         * @return map from protocol to its registrations in classpath order
+         */
+        private synchronized Map<String,List<Entry>> readAllIndexes() {
+            if (index != null) {
+                return index;
+            }
+            Boolean prev = LOADING.get();
+            LOADING.set(Boolean.TRUE);
+            try {
+                List<List<Entry>> parts = new ArrayList<>();
+                for (URL url : resources(INDEX)) {
+                    parts.add(readIndex(url));
+                }
+                index = mergeIndex(parts);
+                return index;
+            } finally {
+                LOADING.set(prev);
+            }
+        }
+
+        private List<URL> resources(String name) {
+            try {
+                return Collections.list(loader == null ? 
+                    ClassLoader.getSystemResources(name) : loader.getResources(name)
+                );
+            } catch (IOException ex) {
+                Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, null, ex);
+                return Collections.emptyList();
+            }
+        }
+
+        private final class Preload extends RecursiveTask<Set<String>> {
+            @Override
+            protected Set<String> compute() {
+                List<ForkJoinTask<List<Entry>>> indexes = new ArrayList<>();
+                for (URL url : resources(INDEX)) {
+                    indexes.add(ForkJoinTask.adapt(() -> readIndex(url)));
+                }
+                List<ForkJoinTask<List<String>>> folders = new ArrayList<>();
+                for (URL url : resources("META-INF/urls/")) {
+                    folders.add(ForkJoinTask.adapt(() -> listFolder(url)));
+                }
+                invokeAll(indexes);
+                invokeAll(folders);
+
+                List<List<Entry>> parts = new ArrayList<>();
+                for (ForkJoinTask<List<Entry>> t : indexes) {
+                    parts.add(t.join());
+                }
+                Map<String,List<Entry>> map = mergeIndex(parts);
+                synchronized (Table.this) {
+                    index = map;
+                }
+
+                Set<String> protocols = new TreeSet<>(map.keySet());
+                protocols.addAll(registries().keySet());
+                for (ForkJoinTask<List<String>> t : folders) {
+                    protocols.addAll(t.join());
+                }
+
+                List<ForkJoinTask<URLStreamHandler>> resolve = new ArrayList<>();
+                for (String p : protocols) {
+                    resolve.add(ForkJoinTask.adapt(() -> handler(p)));
+                }
+                invokeAll(resolve);
+                return protocols;
+            }
+        }
+    }
+    
+    private static URLStreamHandler createHandler(String protocol, Class<?> implClass) throws Exception {
+        if (URLStreamHandler.class.isAssignableFrom(implClass)) {
+            return implClass.asSubclass(URLStreamHandler.class).newInstance();
+        }
+        if (URLStreamHandlerFactory.class.isAssignableFrom(implClass)) {
+            URLStreamHandlerFactory f = (URLStreamHandlerFactory)implClass.newInstance();
+            URLStreamHandler handler = f.createURLStreamHandler(protocol);
+            if (handler != null) {
+                return handler;
+            }
+        }
+        if (URLConnection.class.isAssignableFrom(implClass)) {
+            return new GenericHandler(implClass.asSubclass(URLConnection.class));
         }
         return null;
     }
-
-    private Iterable<String> lines(URL url) throws IOException {
-        BufferedReader r = new BufferedReader(new InputStreamReader(url.openStream()));
-        List<String> arr = new ArrayList<String>();
-        for (;;) {
-            String l = r.readLine();
-            if (l == null) {
-                return arr;
+    
+    private static List<Entry> readIndex(URL url) {
+        List<Entry> entries = new ArrayList<>();
+        try {
+            for (String line : lines(url)) {
+                Entry e = Entry.parse(line);
+                if (e != null) {
+                    entries.add(e);
+                }
             }
-            l = l.trim();
-            if (!l.isEmpty()) {
-                arr.add(l);
+        } catch (IOException ex) {
+            Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, "Cannot read " + url, ex);
+        }
+        return entries;
+    }
+    
+    private static Map<String,List<Entry>> mergeIndex(List<List<Entry>> parts) {
+        Map<String,List<Entry>> map = new HashMap<>();
+        for (List<Entry> part : parts) {
+            for (Entry e : part) {
+                List<Entry> arr = map.get(e.protocol);
+                if (arr == null) {
+                    arr = new ArrayList<>();
+                    map.put(e.protocol, arr);
+                }
+                arr.add(e);
             }
         }
+        for (List<Entry> arr : map.values()) {
+            Collections.sort(arr, Entry.BY_POSITION);
+        }
+        return Collections.unmodifiableMap(map);
     }
     
+    /** Lists protocols registered by older versions of the processor in
+     * given <code>META-INF/urls/</code> folder. Jars are only found when
+     * they contain entry for the folder itself.
+     */
+    private static List<String> listFolder(URL folder) {
+        List<String> names = new ArrayList<>();
+        try {
+            if ("file".equals(folder.getProtocol())) {
+                String[] arr = new File(folder.toURI()).list();
+                if (arr != null) {
+                    names.addAll(Arrays.asList(arr));
+                }
+                return names;
+            }
+            URLConnection c = folder.openConnection();
+            if (c instanceof JarURLConnection) {
+                JarURLConnection jc = (JarURLConnection) c;
+                String prefix = jc.getEntryName();
+                Enumeration<JarEntry> en = jc.getJarFile().entries();
+                while (en.hasMoreElements()) {
+                    String n = en.nextElement().getName();
+                    if (n.startsWith(prefix) && n.length() > prefix.length() && n.indexOf('/', prefix.length()) == -1) {
+                        names.add(n.substring(prefix.length()));
+                    }
+                }
+            }
+        } catch (IOException | URISyntaxException ex) {
+            Logger.getLogger(GlobalProxyFactory.class.getName()).log(Level.SEVERE, "Cannot list " + folder, ex);
+        }
+        return names;
+    }
+    
+    private static Iterable<String> lines(URL url) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        try {
+            List<String> arr = new ArrayList<String>();
+            for (;;) {
+                String l = r.readLine();
+                if (l == null) {
+                    return arr;
+                }
+                l = l.trim();
+                if (!l.isEmpty()) {
+                    arr.add(l);
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+    
+    /** One line of the {@link #INDEX}: protocol, kind, class name 
+     * and optionally name of generated handler and <code>position=n</code>
+     * separated by spaces.
+     */
+    private static final class Entry {
+        static final String FACTORY = "factory";
+        static final String CONNECTION = "connection";
+        static final Comparator<Entry> BY_POSITION = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Integer.compare(a.position, b.position);
+            }
+        };
+        
+        final String protocol;
+        final String kind;
+        final String className;
+        final String handler;
+        int position = Integer.MAX_VALUE;
+
+        private Entry(String protocol, String kind, String className, String handler) {
+            this.protocol = protocol;
+            this.kind = kind;
+            this.className = className;
+            this.handler = handler;
+        }
+        
+        static Entry parse(String line) {
+            if (line.startsWith("#")) {
+                return null;
+            }
+            String[] arr = line.split(" +");
+            if (arr.length < 3) {
+                return null;
+            }
+            String handler = null;
+            int position = Integer.MAX_VALUE;
+            for (int i = 3; i < arr.length; i++) {
+                if (arr[i].startsWith("position=")) {
+                    try {
+                        position = Integer.parseInt(arr[i].substring(9));
+                    } catch (NumberFormatException ex) {
+                        return null;
+                    }
+                } else {
+                    handler = arr[i];
+                }
+            }
+            Entry e = new Entry(arr[0], arr[1], arr[2], handler);
+            e.position = position;
+            return e;
+        }
+    }
 }
@@ -0,0 +1,280 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** File mapped into memory and shared by all connections reading it.
+ * Mappings stay cached after their readers are closed, so repeated opens
+ * of the same file only check its modification time and size. At most
+ * {@link #MAX_MAPPED} files are kept, the least recently used mapping
+ * is dropped first and unmapped once its last reader is garbage collected.
+ * Files larger than 2GB are mapped in several segments.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class MappedFile {
+    /** number of mappings kept */
+    static final int MAX_MAPPED = 64;
+    private static final Map<Path,MappedFile> MAPPED = new LinkedHashMap<Path,MappedFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path,MappedFile> eldest) {
+            return size() > MAX_MAPPED;
+        }
+    };
+    private static final int SEGMENT = Integer.MAX_VALUE;
+    
+    private final long size;
+    private final long modified;
+    private final MappedByteBuffer[] segments;
+
+    private MappedFile(long size, long modified, MappedByteBuffer[] segments) {
+        this.size = size;
+        this.modified = modified;
+        this.segments = segments;
+    }
+    
+    /** Finds mapping of the file or maps it. The cached mapping is used 
+     * when the file still has the same modification time and size.
+     */
+    static MappedFile get(Path path) throws IOException {
+        Path key = path.toAbsolutePath();
+        BasicFileAttributes attrs = Files.readAttributes(key, BasicFileAttributes.class);
+        long modified = attrs.lastModifiedTime().toMillis();
+        synchronized (MAPPED) {
+            MappedFile f = MAPPED.get(key);
+            if (f != null && f.size == attrs.size() && f.modified == modified) {
+                return f;
+            }
+        }
+        MappedFile created = map(key, modified);
+        synchronized (MAPPED) {
+            MAPPED.put(key, created);
+        }
+        return created;
+    }
+    
+    private static MappedFile map(Path path, long modified) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            int cnt = (int) ((size + SEGMENT - 1) / SEGMENT);
+            MappedByteBuffer[] segments = new MappedByteBuffer[Math.max(cnt, 1)];
+            for (int i = 0; i < segments.length; i++) {
+                long from = (long) i * SEGMENT;
+                segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT, size - from));
+            }
+            return new MappedFile(size, modified, segments);
+        }
+    }
+    
+    long size() {
+        return size;
+    }
+    
+    /** Size of the file. Taken from the mapping, so readers asking
+     * for the length and reading the content later map the file once.
+     */
+    static long size(Path path) throws IOException {
+        return get(path).size;
+    }
+    
+    /** Copies content of the file from the shared mapping.
+     * @param path the file
+     * @param metrics where to report bytes read
+     * @return the content
+     */
+    static byte[] readAllBytes(Path path, ProtocolMetrics metrics) throws IOException {
+        MappedFile f = get(path);
+        if (f.size > Integer.MAX_VALUE - 8) {
+            throw new IOException("Too large to read at once: " + path);
+        }
+        byte[] arr = new byte[(int) f.size];
+        int off = 0;
+        for (MappedByteBuffer segment : f.segments) {
+            ByteBuffer v = segment.duplicate();
+            int n = v.remaining();
+            v.get(arr, off, n);
+            off += n;
+        }
+        metrics.read(arr.length);
+        return arr;
+    }
+    
+    static boolean isMapped(Path path) {
+        synchronized (MAPPED) {
+            return MAPPED.containsKey(path.toAbsolutePath());
+        }
+    }
+    
+    InputStream newInputStream(ProtocolMetrics metrics) {
+        return new Stream(new Cursor(this, metrics));
+    }
+    
+    ReadableByteChannel newChannel(ProtocolMetrics metrics) {
+        return new Channel(new Cursor(this, metrics));
+    }
+    
+    /** Position of a single reader in the file. */
+    private static final class Cursor {
+        private final MappedFile file;
+        private final ProtocolMetrics metrics;
+        private final ByteBuffer[] views;
+        private long position;
+        private boolean closed;
+
+        Cursor(MappedFile file, ProtocolMetrics metrics) {
+            this.file = file;
+            this.metrics = metrics;
+            this.views = new ByteBuffer[file.segments.length];
+            for (int i = 0; i < views.length; i++) {
+                views[i] = file.segments[i].duplicate();
+            }
+        }
+        
+        private ByteBuffer current() {
+            ByteBuffer v = views[(int) (position / SEGMENT)];
+            v.position((int) (position % SEGMENT));
+            return v;
+        }
+        
+        int read(byte[] b, int off, int len) {
+            if (position >= file.size) {
+                return -1;
+            }
+            ByteBuffer v = current();
+            int n = Math.min(len, v.remaining());
+            v.get(b, off, n);
+            position += n;
+            metrics.read(n);
+            return n;
+        }
+        
+        int read(ByteBuffer dst) {
+            if (position >= file.size) {
+                return -1;
+            }
+            ByteBuffer v = current();
+            int n = Math.min(dst.remaining(), v.remaining());
+            int limit = v.limit();
+            v.limit(v.position() + n);
+            dst.put(v);
+            v.limit(limit);
+            position += n;
+            metrics.read(n);
+            return n;
+        }
+        
+        long skip(long n) {
+            long k = Math.max(0, Math.min(n, file.size - position));
+            position += k;
+            return k;
+        }
+        
+        long remaining() {
+            return file.size - position;
+        }
+        
+        void close() {
+            closed = true;
+        }
+    }
+    
+    private static final class Stream extends InputStream {
+        private final Cursor cursor;
+
+        Stream(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (cursor.closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            return cursor.read(b, off, len);
+        }
+
+        @Override
+        public synchronized long skip(long n) {
+            return cursor.skip(n);
+        }
+
+        @Override
+        public synchronized int available() {
+            return (int) Math.min(Integer.MAX_VALUE, cursor.remaining());
+        }
+
+        @Override
+        public synchronized void close() {
+            cursor.close();
+        }
+    }
+    
+    private static final class Channel implements ReadableByteChannel {
+        private final Cursor cursor;
+
+        Channel(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if (cursor.closed) {
+                throw new ClosedChannelException();
+            }
+            return cursor.read(dst);
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return !cursor.closed;
+        }
+
+        @Override
+        public synchronized void close() {
+            cursor.close();
+        }
+    }
+}
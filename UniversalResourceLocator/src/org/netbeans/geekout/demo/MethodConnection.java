@@ -0,0 +1,508 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.UnknownServiceException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/** Base class for connections generated around methods annotated by
+ * {@link URLProtocolRegistration}. The method is called lazily, on first
+ * {@link #connect()}, {@link #getInputStream()} or {@link #getChannel()},
+ * and just once.
+ * There is no need to extend this class manually.
+ * <p>
+ * The method may return {@link InputStream}, {@link ByteBuffer} or
+ * {@link ReadableByteChannel} (including {@link FileChannel}). Whatever
+ * it returns is accessible both as stream and as channel. Use 
+ * {@link #getChannel()} to read buffers and channels without copying
+ * them through a stream.
+ * <p>
+ * The method may also return {@link Path} or {@link File}. Such file
+ * is mapped into memory and the mapping is shared by all connections
+ * reading the same file. It is kept for later opens as long as the file
+ * keeps its modification time and size.
+ * <p>
+ * Methods returning <code>byte[]</code> or {@link CharSequence}, encoded
+ * by the {@link URLProtocolRegistration#charset() declared charset}, 
+ * are served like a {@link ByteBuffer}. Their length is known, so
+ * {@link #getContentLengthLong()} reports it and {@link #readAllBytes()}
+ * copies the content at once.
+ * <p>
+ * Asynchronous methods may return {@link CompletionStage} of 
+ * {@link InputStream} or {@link ByteBuffer}, or 
+ * <code>java.util.concurrent.Flow.Publisher</code> of {@link ByteBuffer}.
+ * Blocking readers wait for the stage or read the buffers as they are
+ * published, requesting a few of them ahead. Use 
+ * {@link #getContent(java.lang.Class[])} to consume them without blocking.
+ * <p>
+ * Content type, encoding and length declared in the annotation are
+ * reported without calling the method at all.
+ * <p>
+ * Methods taking {@link URL} and {@link InputStream} accept output. 
+ * Once {@link #setDoOutput(boolean) output is enabled}, the method is
+ * called in background by {@link #getOutputStream()} and reads what is
+ * written to the stream. Data are passed in chunks and the writer waits
+ * when the method does not keep up, so large uploads are never held in
+ * memory. Closing the output stream waits for the method to finish.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+public abstract class MethodConnection extends URLConnection {
+    private final String charset;
+    private final String contentType;
+    private final String encoding;
+    private final long fixedLength;
+    private Object content;
+    private boolean text;
+    private final ProtocolMetrics metrics;
+    private volatile boolean opened;
+    private long streamingLength = -1;
+    private int chunkLength;
+    private volatile ChunkedPipe pipe;
+    private Future<Object> writing;
+    private CompletableFuture<Object> result;
+
+    protected MethodConnection(URL url) {
+        this(url, "UTF-8");
+    }
+
+    /** Creates connection.
+     * @param url the URL
+     * @param charset charset to encode {@link CharSequence} returned
+     *   by the method
+     */
+    protected MethodConnection(URL url, String charset) {
+        this(url, charset, "", "", -1);
+    }
+
+    /** Creates connection with declared metadata.
+     * @param url the URL
+     * @param charset charset to encode {@link CharSequence} returned
+     *   by the method
+     * @param contentType declared content type or empty string
+     * @param encoding declared content encoding or empty string
+     * @param fixedLength declared length or <code>-1</code>
+     */
+    protected MethodConnection(URL url, String charset, String contentType, String encoding, long fixedLength) {
+        super(url);
+        this.charset = charset;
+        this.contentType = contentType;
+        this.encoding = encoding;
+        this.fixedLength = fixedLength;
+        this.metrics = ProtocolMetrics.of(url.getProtocol());
+    }
+
+    @Override
+    public final void connect() throws IOException {
+        if (opened) {
+            return;
+        }
+        synchronized (this) {
+            if (opened) {
+                return;
+            }
+            Object event = Events.beginConnect();
+            Object c = null;
+            boolean ok = false;
+            try {
+                c = ChunkedPipe.await(start());
+                content = normalize(c);
+                ok = true;
+            } catch (IOException | RuntimeException | Error ex) {
+                metrics.failed();
+                throw ex;
+            } finally {
+                Events.endConnect(event, url, getClass(), c, !ok);
+            }
+            connected = true;
+            opened = true;
+        }
+    }
+    
+    /** Calls the method, unless already called.
+     * @return future completed with the value returned by the method,
+     *   or with the value its {@link CompletionStage} completes with
+     */
+    private synchronized CompletableFuture<Object> start() throws IOException {
+        if (result == null) {
+            Object c;
+            try {
+                if (writing != null) {
+                    pipe.out.close();
+                    c = ChunkedPipe.await(writing);
+                } else {
+                    c = open();
+                }
+            } catch (IOException | RuntimeException | Error ex) {
+                CompletableFuture<Object> failed = new CompletableFuture<>();
+                failed.completeExceptionally(ex);
+                result = failed;
+                return result;
+            }
+            if (c instanceof CompletionStage) {
+                result = ((CompletionStage<?>) c).toCompletableFuture().thenApply((v) -> (Object) v);
+            } else {
+                result = CompletableFuture.completedFuture(c);
+            }
+        }
+        return result;
+    }
+    
+    /** Content in a form that can be consumed without blocking. Besides
+     * what {@link URLConnection#getContent(java.lang.Class[])} supports:
+     * <ul>
+     *   <li>{@link CompletionStage} or {@link CompletableFuture} is
+     *     completed with {@link #getInputStream() input stream} when 
+     *     the content is available. Methods returning 
+     *     {@link CompletionStage} are not waited for.</li>
+     *   <li><code>java.util.concurrent.Flow.Publisher</code> is returned
+     *     as is, when the method returns it. Buffers are then delivered 
+     *     as the subscriber requests them. Do not use it together with 
+     *     {@link #getInputStream()}, which subscribes to it too.</li>
+     * </ul>
+     * 
+     * @param classes requested types
+     * @return content of the first supported type
+     * @throws IOException if the content cannot be obtained
+     */
+    @Override
+    public Object getContent(Class[] classes) throws IOException {
+        for (Class<?> type : classes) {
+            if (type == CompletionStage.class || type == CompletableFuture.class) {
+                return start().handle((c, ex) -> {
+                    try {
+                        if (ex != null) {
+                            metrics.failed();
+                            throw ex instanceof CompletionException ? (CompletionException) ex : new CompletionException(ex);
+                        }
+                        synchronized (this) {
+                            if (!opened) {
+                                content = normalize(c);
+                                connected = true;
+                                opened = true;
+                            }
+                        }
+                        return getInputStream();
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+            }
+            if (PublisherInputStream.isPublisherType(type)) {
+                CompletableFuture<Object> r = start();
+                Object c = r.isDone() ? ChunkedPipe.await(r) : null;
+                if (PublisherInputStream.isPublisher(c)) {
+                    return c;
+                }
+            }
+        }
+        return super.getContent(classes);
+    }
+
+    /** Output stream passing data to the method. Only available for
+     * methods taking {@link InputStream} and after 
+     * {@link #setDoOutput(boolean) setDoOutput(true)}.
+     * 
+     * @return stream to write to
+     * @throws IOException if output is not supported or the method
+     *   has already been called
+     */
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if (!isOutputSupported()) {
+            throw new UnknownServiceException("Protocol " + url.getProtocol() + " does not support output");
+        }
+        if (!doOutput) {
+            throw new ProtocolException("Cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+        }
+        if (pipe == null) {
+            if (opened || result != null) {
+                throw new ProtocolException("Cannot write output after reading input");
+            }
+            final ChunkedPipe p = new ChunkedPipe(chunkLength, streamingLength, metrics);
+            FutureTask<Object> task = new FutureTask<>(() -> {
+                try {
+                    return open();
+                } finally {
+                    p.in.close();
+                }
+            });
+            p.readBy(task);
+            pipe = p;
+            writing = task;
+            connected = true;
+            OpenTask.defaultExecutor().execute(task);
+        }
+        return pipe.out;
+    }
+
+    /** Exact number of bytes to be written to the 
+     * {@link #getOutputStream() output}. Writing more fails immediately,
+     * writing less fails on close.
+     * 
+     * @param contentLength number of bytes to write
+     * @throws IllegalStateException if already connected
+     * @see java.net.HttpURLConnection#setFixedLengthStreamingMode(long) 
+     */
+    public void setFixedLengthStreamingMode(long contentLength) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        if (contentLength < 0) {
+            throw new IllegalArgumentException("Invalid length: " + contentLength);
+        }
+        streamingLength = contentLength;
+    }
+
+    /** Size of chunks the {@link #getOutputStream() output} is passed to
+     * the method in.
+     * 
+     * @param chunkLength size of a chunk in bytes, non-positive value
+     *   selects default
+     * @throws IllegalStateException if already connected
+     * @see java.net.HttpURLConnection#setChunkedStreamingMode(int) 
+     */
+    public void setChunkedStreamingMode(int chunkLength) {
+        if (connected) {
+            throw new IllegalStateException("Already connected");
+        }
+        this.chunkLength = chunkLength;
+    }
+
+    /** Data written to the {@link #getOutputStream() output}. To be
+     * passed to the method by {@link #open()}.
+     * @return stream with the written data, empty if nothing was written
+     */
+    protected final InputStream input() {
+        ChunkedPipe p = pipe;
+        return p == null ? new ByteArrayInputStream(new byte[0]) : p.in;
+    }
+
+    /** Does the method accept output?
+     * @return <code>true</code> if the method takes {@link InputStream}
+     */
+    protected boolean isOutputSupported() {
+        return false;
+    }
+
+    private Object normalize(Object c) {
+        if (c instanceof File) {
+            return ((File) c).toPath();
+        }
+        if (c instanceof byte[]) {
+            return ByteBuffer.wrap((byte[]) c);
+        }
+        if (c instanceof CharSequence) {
+            text = true;
+            return ByteBuffer.wrap(c.toString().getBytes(Charset.forName(charset)));
+        }
+        return c;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        connect();
+        return Events.traceRead(newInputStream(), url, getClass());
+    }
+    
+    private InputStream newInputStream() throws IOException {
+        if (content instanceof InputStream) {
+            return new CountingInputStream((InputStream) content, metrics);
+        }
+        if (content instanceof ByteBuffer) {
+            return new ByteBufferInputStream(((ByteBuffer) content).duplicate(), metrics);
+        }
+        if (content instanceof ReadableByteChannel) {
+            return new CountingInputStream(Channels.newInputStream((ReadableByteChannel) content), metrics);
+        }
+        if (content instanceof Path) {
+            return MappedFile.get((Path) content).newInputStream(metrics);
+        }
+        if (PublisherInputStream.isPublisher(content)) {
+            return PublisherInputStream.subscribe(content, metrics);
+        }
+        return null;
+    }
+    
+    /** Channel to read content of the connection. If the method returns
+     * a {@link FileChannel} it is returned as is, so one can use
+     * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+     * Content of a {@link ByteBuffer} is copied directly into the buffers
+     * passed to {@link ReadableByteChannel#read(java.nio.ByteBuffer)}.
+     * 
+     * @return channel with the content or <code>null</code> if the method 
+     *   returned <code>null</code>
+     * @throws IOException if the method fails
+     */
+    public ReadableByteChannel getChannel() throws IOException {
+        connect();
+        if (content instanceof FileChannel) {
+            return (FileChannel) content;
+        }
+        return Events.traceRead(newChannel(), url, getClass());
+    }
+    
+    private ReadableByteChannel newChannel() throws IOException {
+        if (content instanceof ReadableByteChannel) {
+            return new CountingChannel((ReadableByteChannel) content, metrics);
+        }
+        if (content instanceof ByteBuffer) {
+            return new CountingChannel(new ByteBufferChannel(((ByteBuffer) content).duplicate()), metrics);
+        }
+        if (content instanceof InputStream) {
+            return Channels.newChannel(new CountingInputStream((InputStream) content, metrics));
+        }
+        if (content instanceof Path) {
+            return MappedFile.get((Path) content).newChannel(metrics);
+        }
+        if (PublisherInputStream.isPublisher(content)) {
+            return Channels.newChannel(PublisherInputStream.subscribe(content, metrics));
+        }
+        return null;
+    }
+    
+    /** Reads whole content. When the method returns buffer, array
+     * or text the content is copied at once, without any stream.
+     * 
+     * @return the content or <code>null</code> if the method 
+     *   returned <code>null</code>
+     * @throws IOException if the method fails
+     */
+    public byte[] readAllBytes() throws IOException {
+        connect();
+        if (content instanceof ByteBuffer) {
+            return new ByteBufferInputStream(((ByteBuffer) content).duplicate(), metrics).readAllBytes();
+        }
+        if (content instanceof Path) {
+            return MappedFile.readAllBytes((Path) content, metrics);
+        }
+        InputStream is = getInputStream();
+        if (is == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] arr = new byte[8192];
+            for (;;) {
+                int len = is.read(arr);
+                if (len == -1) {
+                    return os.toByteArray();
+                }
+                os.write(arr, 0, len);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /** Length of the content, if known without reading it. That is
+     * for buffers, arrays, text and files.
+     * @return length in bytes or <code>-1</code>
+     */
+    @Override
+    public long getContentLengthLong() {
+        if (fixedLength >= 0) {
+            return fixedLength;
+        }
+        try {
+            connect();
+            if (content instanceof ByteBuffer) {
+                return ((ByteBuffer) content).remaining();
+            }
+            if (content instanceof Path) {
+                return MappedFile.size((Path) content);
+            }
+            if (content instanceof FileChannel) {
+                return ((FileChannel) content).size();
+            }
+        } catch (IOException ex) {
+            // unknown
+        }
+        return -1;
+    }
+
+    /** Declared content type. Otherwise type of text returned by the 
+     * method is <code>text/plain</code> with the declared charset.
+     * @return content type or <code>null</code> if unknown
+     */
+    @Override
+    public String getContentType() {
+        if (!contentType.isEmpty()) {
+            return contentType;
+        }
+        try {
+            connect();
+        } catch (IOException ex) {
+            return null;
+        }
+        return text ? "text/plain; charset=" + charset : null;
+    }
+
+    @Override
+    public String getContentEncoding() {
+        return encoding.isEmpty() ? null : encoding;
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        if ("content-type".equalsIgnoreCase(name)) {
+            return getContentType();
+        }
+        if ("content-encoding".equalsIgnoreCase(name)) {
+            return getContentEncoding();
+        }
+        if ("content-length".equalsIgnoreCase(name)) {
+            long len = getContentLengthLong();
+            return len < 0 ? null : Long.toString(len);
+        }
+        return super.getHeaderField(name);
+    }
+
+    /** Calls the annotated method.
+     * @return {@link InputStream}, {@link ByteBuffer}, {@link ReadableByteChannel},
+     *   {@link Path}, {@link File}, <code>byte[]</code> or {@link CharSequence}
+     *   returned by the method, <code>null</code> if it returns nothing
+     * @throws IOException if the method fails
+     */
+    protected abstract Object open() throws IOException;
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Opens a stream of an URL in background for
+ * {@link URLs#openAsync(java.net.URL)}. Cancelling the future interrupts
+ * the thread that is opening the connection; a stream opened after the
+ * cancellation is closed.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class OpenTask extends CompletableFuture<InputStream> implements Runnable {
+    private final URL url;
+    private Thread runner;
+    
+    OpenTask(URL url) {
+        this.url = url;
+    }
+    
+    static CompletableFuture<InputStream> submit(URL url, Executor executor) {
+        OpenTask task = new OpenTask(url);
+        executor.execute(task);
+        return task;
+    }
+
+    @Override
+    public void run() {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            runner = Thread.currentThread();
+        }
+        InputStream is = null;
+        Throwable failure = null;
+        try {
+            is = url.openStream();
+        } catch (IOException | RuntimeException | Error ex) {
+            failure = ex;
+        } finally {
+            synchronized (this) {
+                runner = null;
+                if (isCancelled()) {
+                    Thread.interrupted();
+                }
+            }
+        }
+        if (failure != null) {
+            completeExceptionally(failure);
+        } else if (!complete(is) && is != null) {
+            try {
+                is.close();
+            } catch (IOException ex) {
+                Logger.getLogger(OpenTask.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean res = super.cancel(mayInterruptIfRunning);
+        synchronized (this) {
+            if (res && runner != null) {
+                runner.interrupt();
+            }
+        }
+        return res;
+    }
+    
+    /** Executor running each task in its own virtual thread, when the
+     * JDK supports them, otherwise cached pool of daemon threads.
+     */
+    static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+    
+    private static final class DefaultExecutor {
+        static final ExecutorService INSTANCE = create();
+        
+        private static ExecutorService create() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                Logger.getLogger(OpenTask.class.getName()).log(Level.FINE, "No virtual threads", ex);
+            }
+            final AtomicInteger cnt = new AtomicInteger();
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "URLs.openAsync-" + cnt.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Live counters of a single protocol. Updated concurrently from
+ * resolution and connection code paths, read only when a
+ * {@link ProtocolStatistics snapshot} is requested.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class ProtocolMetrics {
+    private static final ConcurrentMap<String,ProtocolMetrics> ALL = new ConcurrentHashMap<>();
+    /** histogram buckets; bucket <em>i</em> counts values below 2^i nanoseconds */
+    static final int BUCKETS = 40;
+    
+    final String protocol;
+    private volatile ProtocolStatistics.Source source;
+    private final LongAdder resolutions = new LongAdder();
+    private final LongAdder resolutionNanos = new LongAdder();
+    private final LongAdder[] resolutionHistogram;
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private ProtocolMetrics(String protocol) {
+        this.protocol = protocol;
+        this.resolutionHistogram = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            resolutionHistogram[i] = new LongAdder();
+        }
+    }
+    
+    static ProtocolMetrics of(String protocol) {
+        ProtocolMetrics m = ALL.get(protocol);
+        if (m == null) {
+            m = ALL.computeIfAbsent(protocol, ProtocolMetrics::new);
+        }
+        return m;
+    }
+    
+    /** Metrics of a protocol that has been seen already.
+     * @return the metrics or <code>null</code>
+     */
+    static ProtocolMetrics existing(String protocol) {
+        return ALL.get(protocol);
+    }
+    
+    static Iterable<ProtocolMetrics> all() {
+        return ALL.values();
+    }
+    
+    /** Resets counters of all protocols. Instances are kept, as
+     * handlers and connections hold them.
+     */
+    static void resetAll() {
+        for (ProtocolMetrics m : ALL.values()) {
+            m.reset();
+        }
+    }
+    
+    private void reset() {
+        resolutions.reset();
+        resolutionNanos.reset();
+        for (LongAdder a : resolutionHistogram) {
+            a.reset();
+        }
+        opened.reset();
+        failed.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        cacheHits.reset();
+        cacheMisses.reset();
+    }
+    
+    void resolved(ProtocolStatistics.Source src, long nanos) {
+        source = src;
+        resolutions.increment();
+        resolutionNanos.add(nanos);
+        resolutionHistogram[bucket(nanos)].increment();
+    }
+    
+    void opened() {
+        opened.increment();
+    }
+    
+    void failed() {
+        failed.increment();
+    }
+    
+    void read(long bytes) {
+        bytesRead.add(bytes);
+    }
+    
+    void written(long bytes) {
+        bytesWritten.add(bytes);
+    }
+    
+    void cacheHit() {
+        cacheHits.increment();
+    }
+    
+    void cacheMiss() {
+        cacheMisses.increment();
+    }
+    
+    ProtocolStatistics snapshot() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = resolutionHistogram[i].sum();
+        }
+        return new ProtocolStatistics(
+            protocol, source, resolutions.sum(), resolutionNanos.sum(), histogram,
+            opened.sum(), failed.sum(), bytesRead.sum(), bytesWritten.sum(), 
+            cacheHits.sum(), cacheMisses.sum()
+        );
+    }
+    
+    static int bucket(long nanos) {
+        int b = 64 - Long.numberOfLeadingZeros(nanos);
+        return b < BUCKETS ? b : BUCKETS - 1;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.net.URLStreamHandler;
+
+/** Registrations known at compile time. For each compilation unit
+ * the annotation processor generates a subclass creating the 
+ * {@link URLProtocolRegistration registered} handlers directly, without
+ * scanning resources or reflection, and registers it in
+ * <code>META-INF/services</code>. That makes the registrations usable in
+ * closed world environments like GraalVM <code>native-image</code>.
+ * There is no need to extend this class manually.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+public abstract class ProtocolRegistry {
+    protected ProtocolRegistry() {
+    }
+    
+    /** Protocols provided by this registry.
+     * @return names of the protocols
+     */
+    protected abstract String[] protocols();
+    
+    /** Positions of registrations of given protocol.
+     * @param protocol one of the {@link #protocols()}
+     * @return {@link URLProtocolRegistration#position() positions} 
+     *   in ascending order, one per registration
+     */
+    protected abstract int[] positions(String protocol);
+    
+    /** Creates handler of one registration.
+     * @param protocol one of the {@link #protocols()}
+     * @param index index into {@link #positions(java.lang.String)}
+     * @return the handler or <code>null</code>
+     */
+    protected abstract URLStreamHandler create(String protocol, int index);
+    
+    /** Creates handler for given protocol. Registrations are tried
+     * in order of their {@link URLProtocolRegistration#position() position}.
+     * 
+     * @param protocol one of the {@link #protocols()}
+     * @return the handler or <code>null</code>
+     */
+    protected URLStreamHandler create(String protocol) {
+        int[] positions = positions(protocol);
+        for (int i = 0; i < positions.length; i++) {
+            URLStreamHandler h = create(protocol, i);
+            if (h != null) {
+                return h;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.beans.ConstructorProperties;
+
+/** Snapshot of statistics collected for a single protocol.
+ * Obtain it from {@link URLs#getStatistics()} or via JMX
+ * {@link URLStatisticsMXBean}.
+ * <p>
+ * Resolution is measured for every protocol the global proxy factory
+ * is asked about. Connections are counted only for registrations served
+ * by handlers this library creates, i.e. registered
+ * <code>URLConnection</code> classes and methods; handlers returned by
+ * factories are opaque. Bytes read and written are counted for method registrations
+ * and for content served from the cache of 
+ * {@link URLProtocolRegistration#cacheable() cacheable} ones.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+public final class ProtocolStatistics {
+    /** Where the handler for a protocol was found. */
+    public enum Source {
+        /** registered at runtime by {@link URLs#register(java.lang.String, java.net.URLStreamHandler)} */
+        REGISTERED,
+        /** {@link ProtocolRegistry} generated by the processor */
+        REGISTRY,
+        /** <code>META-INF/urls.index</code> generated by the processor */
+        INDEX,
+        /** <code>META-INF/urls/protocol</code> resource of older versions */
+        ANNOTATION,
+        /** {@link java.net.URLStreamHandlerFactory} registered in 
+         * <code>META-INF/services</code> */
+        SERVICE_LOADER,
+        /** no handler found anymore, reported only for protocols
+         * that resolved before */
+        MISS
+    }
+    
+    private final String protocol;
+    private final Source source;
+    private final long resolutionCount;
+    private final long resolutionTime;
+    private final long[] resolutionHistogram;
+    private final long openCount;
+    private final long errorCount;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final long cacheHits;
+    private final long cacheMisses;
+
+    @ConstructorProperties({
+        "protocol", "source", "resolutionCount", "resolutionTime", 
+        "resolutionHistogram", "openCount", "errorCount", "bytesRead",
+        "bytesWritten", "cacheHits", "cacheMisses"
+    })
+    public ProtocolStatistics(
+        String protocol, Source source, long resolutionCount, long resolutionTime, 
+        long[] resolutionHistogram, long openCount, long errorCount, long bytesRead,
+        long bytesWritten, long cacheHits, long cacheMisses
+    ) {
+        this.protocol = protocol;
+        this.source = source;
+        this.resolutionCount = resolutionCount;
+        this.resolutionTime = resolutionTime;
+        this.resolutionHistogram = resolutionHistogram.clone();
+        this.openCount = openCount;
+        this.errorCount = errorCount;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.cacheHits = cacheHits;
+        this.cacheMisses = cacheMisses;
+    }
+
+    /** @return the protocol */
+    public String getProtocol() {
+        return protocol;
+    }
+
+    /** @return source of the last resolution or <code>null</code> if
+     *   the protocol has not been resolved yet
+     */
+    public Source getSource() {
+        return source;
+    }
+
+    /** @return how many times the protocol was looked up without cached result */
+    public long getResolutionCount() {
+        return resolutionCount;
+    }
+
+    /** @return total time spent resolving the protocol in nanoseconds */
+    public long getResolutionTime() {
+        return resolutionTime;
+    }
+
+    /** Histogram of resolution times. Element <em>i</em> counts resolutions 
+     * that took less than 2<sup>i</sup> and at least 2<sup>i-1</sup> 
+     * nanoseconds, the last one counts all longer resolutions.
+     * @return copy of the histogram
+     */
+    public long[] getResolutionHistogram() {
+        return resolutionHistogram.clone();
+    }
+
+    /** @return number of connections opened */
+    public long getOpenCount() {
+        return openCount;
+    }
+
+    /** @return number of connections that failed to open or connect */
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /** @return number of bytes read from the connections */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /** @return number of bytes written to the connections */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** @return number of connections served from the cache */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /** @return number of connections of cacheable registrations 
+     *   not found in the cache */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    @Override
+    public String toString() {
+        return "ProtocolStatistics[" + protocol + ", source=" + source 
+            + ", resolutions=" + resolutionCount + ", resolutionTime=" + resolutionTime 
+            + ", opened=" + openCount + ", errors=" + errorCount 
+            + ", bytesRead=" + bytesRead + ", bytesWritten=" + bytesWritten
+            + ", cacheHits=" + cacheHits
+            + ", cacheMisses=" + cacheMisses + ']';
+    }
+}
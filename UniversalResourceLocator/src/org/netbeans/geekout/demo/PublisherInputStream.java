@@ -0,0 +1,286 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Blocking stream reading buffers of a <code>Flow.Publisher</code>.
+ * At most {@link ChunkedPipe#CHUNKS} buffers are requested ahead, 
+ * next one is requested whenever a buffer is consumed. The 
+ * <code>java.util.concurrent.Flow</code> API is accessed reflectively, 
+ * as it is only available since JDK 9.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+final class PublisherInputStream extends InputStream {
+    /** the <code>java.util.concurrent.Flow</code> API or <code>null</code> on JDK 8 */
+    private static final Api FLOW;
+    static {
+        Api flow = null;
+        try {
+            flow = new Api(
+                Class.forName("java.util.concurrent.Flow$Publisher"),
+                Class.forName("java.util.concurrent.Flow$Subscriber"),
+                Class.forName("java.util.concurrent.Flow$Subscription")
+            );
+        } catch (ReflectiveOperationException ex) {
+            Logger.getLogger(PublisherInputStream.class.getName()).log(Level.FINE, "No Flow API", ex);
+        }
+        FLOW = flow;
+    }
+    
+    private final Api api;
+    private final Queue<ByteBuffer> buffers = new ArrayDeque<>();
+    private final ProtocolMetrics metrics;
+    private Object subscription;
+    private ByteBuffer current;
+    private boolean complete;
+    private Throwable error;
+    private boolean closed;
+
+    private PublisherInputStream(Api api, ProtocolMetrics metrics) {
+        this.api = api;
+        this.metrics = metrics;
+    }
+    
+    static boolean isPublisher(Object obj) {
+        return FLOW != null && FLOW.publisher.isInstance(obj);
+    }
+    
+    static boolean isPublisherType(Class<?> type) {
+        return FLOW != null && FLOW.publisher == type;
+    }
+    
+    /** Subscribes to the publisher.
+     * @param publisher instance of <code>Flow.Publisher&lt;ByteBuffer&gt;</code>
+     * @param metrics where to report bytes read
+     * @return stream with the published bytes
+     */
+    static InputStream subscribe(Object publisher, ProtocolMetrics metrics) throws IOException {
+        return subscribe(FLOW, publisher, metrics);
+    }
+    
+    /** Subscribes to a publisher of given API.
+     * @param api the publisher, subscriber and subscription types
+     * @param publisher instance of {@link Api#publisher}
+     * @param metrics where to report bytes read
+     * @return stream with the published bytes
+     */
+    static InputStream subscribe(Api api, Object publisher, ProtocolMetrics metrics) throws IOException {
+        PublisherInputStream is = new PublisherInputStream(api, metrics);
+        Object subscriber = Proxy.newProxyInstance(
+            PublisherInputStream.class.getClassLoader(), new Class<?>[] { api.subscriber }, is.new Subscriber()
+        );
+        try {
+            api.subscribe.invoke(publisher, subscriber);
+        } catch (InvocationTargetException ex) {
+            throw new IOException(ex.getCause());
+        } catch (IllegalAccessException ex) {
+            throw new IOException(ex);
+        }
+        return is;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ByteBuffer b = next();
+        if (b == null) {
+            return -1;
+        }
+        metrics.read(1);
+        return b.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] arr, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer b = next();
+        if (b == null) {
+            return -1;
+        }
+        int n = Math.min(len, b.remaining());
+        b.get(arr, off, n);
+        metrics.read(n);
+        return n;
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        return current == null ? 0 : current.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        Object s;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            buffers.clear();
+            current = null;
+            s = complete ? null : subscription;
+            notifyAll();
+        }
+        if (s != null) {
+            call(api.cancel, s);
+        }
+    }
+    
+    /** Buffer with remaining bytes, waiting for the publisher if needed.
+     * @return the buffer or <code>null</code> at the end of the stream
+     */
+    private ByteBuffer next() throws IOException {
+        Object s;
+        ByteBuffer b;
+        long consumed = 0;
+        synchronized (this) {
+            if (current != null && current.hasRemaining()) {
+                return current;
+            }
+            for (;;) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                b = buffers.poll();
+                if (b != null) {
+                    consumed++;
+                    if (b.hasRemaining()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (error != null) {
+                    throw error instanceof IOException ? (IOException) error : new IOException(error);
+                }
+                if (complete) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+            current = b;
+            s = complete ? null : subscription;
+        }
+        if (consumed > 0 && s != null) {
+            call(api.request, s, consumed);
+        }
+        return b;
+    }
+    
+    private static void call(Method m, Object subscription, Object... args) {
+        try {
+            m.invoke(subscription, args);
+        } catch (ReflectiveOperationException ex) {
+            Logger.getLogger(PublisherInputStream.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    /** Types and methods of the reactive streams API. Tests use their own
+     * interfaces shaped like <code>java.util.concurrent.Flow</code>.
+     */
+    static final class Api {
+        final Class<?> publisher;
+        final Class<?> subscriber;
+        final Method subscribe;
+        final Method request;
+        final Method cancel;
+
+        Api(Class<?> publisher, Class<?> subscriber, Class<?> subscription) throws NoSuchMethodException {
+            this.publisher = publisher;
+            this.subscriber = subscriber;
+            this.subscribe = publisher.getMethod("subscribe", subscriber);
+            this.request = subscription.getMethod("request", long.class);
+            this.cancel = subscription.getMethod("cancel");
+        }
+    }
+    
+    /** Implementation of <code>Flow.Subscriber</code>.
+     */
+    private final class Subscriber implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "onSubscribe":
+                    boolean cancel;
+                    synchronized (PublisherInputStream.this) {
+                        cancel = subscription != null || closed;
+                        if (!cancel) {
+                            subscription = args[0];
+                        }
+                    }
+                    if (cancel) {
+                        call(api.cancel, args[0]);
+                    } else {
+                        call(api.request, args[0], (long) ChunkedPipe.CHUNKS);
+                    }
+                    return null;
+                case "onNext":
+                    synchronized (PublisherInputStream.this) {
+                        if (!closed) {
+                            buffers.add((ByteBuffer) args[0]);
+                            PublisherInputStream.this.notifyAll();
+                        }
+                    }
+                    return null;
+                case "onError":
+                    synchronized (PublisherInputStream.this) {
+                        error = (Throwable) args[0];
+                        PublisherInputStream.this.notifyAll();
+                    }
+                    return null;
+                case "onComplete":
+                    synchronized (PublisherInputStream.this) {
+                        complete = true;
+                        PublisherInputStream.this.notifyAll();
+                    }
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "Subscriber[" + PublisherInputStream.this + "]";
+                default:
+                    throw new UnsupportedOperationException(method.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/** Flight recorder event spanning the life of a stream or channel, 
+ * from its creation till it is closed. Streams are only wrapped when 
+ * the event is enabled.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@Name("org.netbeans.geekout.demo.Read")
+@Label("URL Read")
+@Description("Reading content of a connection till the stream is closed")
+@Category({ "URLs" })
+@StackTrace(false)
+final class ReadEvent extends jdk.jfr.Event {
+    @Label("Protocol")
+    String protocol;
+    
+    @Label("Implementation")
+    String implementation;
+    
+    @Label("URL")
+    String url;
+    
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+    
+    @Label("First Byte")
+    @Description("Time from opening the stream to receiving the first byte")
+    @Timespan(Timespan.NANOSECONDS)
+    long firstByte = -1;
+    
+    private transient long start;
+    
+    /** instance used just to query whether the event is enabled */
+    private static final ReadEvent ENABLED = new ReadEvent();
+    
+    private ReadEvent() {
+    }
+    
+    private ReadEvent(URL url, Class<?> implementation) {
+        this.protocol = url.getProtocol();
+        this.url = url.toExternalForm();
+        this.implementation = implementation.getName();
+        this.start = System.nanoTime();
+    }
+    
+    static InputStream trace(InputStream is, URL url, Class<?> implementation) {
+        if (is == null || !ENABLED.isEnabled()) {
+            return is;
+        }
+        ReadEvent ev = new ReadEvent(url, implementation);
+        ev.begin();
+        return new Stream(is, ev);
+    }
+    
+    static ReadableByteChannel trace(ReadableByteChannel ch, URL url, Class<?> implementation) {
+        if (ch == null || !ENABLED.isEnabled()) {
+            return ch;
+        }
+        ReadEvent ev = new ReadEvent(url, implementation);
+        ev.begin();
+        return new Channel(ch, ev);
+    }
+    
+    private void read(long n) {
+        if (n > 0) {
+            if (firstByte == -1) {
+                firstByte = System.nanoTime() - start;
+            }
+            bytes += n;
+        }
+    }
+    
+    private void closed() {
+        if (shouldCommit()) {
+            commit();
+        }
+    }
+    
+    private static final class Stream extends FilterInputStream {
+        private final ReadEvent event;
+        private boolean closed;
+
+        Stream(InputStream in, ReadEvent event) {
+            super(in);
+            this.event = event;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int ch = in.read();
+            if (ch != -1) {
+                event.read(1);
+            }
+            return ch;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            event.read(n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+            if (!closed) {
+                closed = true;
+                event.closed();
+            }
+        }
+    }
+    
+    private static final class Channel implements ReadableByteChannel {
+        private final ReadableByteChannel delegate;
+        private final ReadEvent event;
+        private boolean closed;
+
+        Channel(ReadableByteChannel delegate, ReadEvent event) {
+            this.delegate = delegate;
+            this.event = event;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = delegate.read(dst);
+            event.read(n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return delegate.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+            if (!closed) {
+                closed = true;
+                event.closed();
+            }
+        }
+    }
+}
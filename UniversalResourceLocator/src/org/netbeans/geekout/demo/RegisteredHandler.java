@@ -0,0 +1,136 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+/** Base class for handlers of {@link URLProtocolRegistration registered}
+ * connections. Subclasses are generated by the annotation processor,
+ * there is no need to extend this class manually.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+public abstract class RegisteredHandler extends URLStreamHandler {
+    private final boolean cacheable;
+    private final String contentType;
+    private final String encoding;
+    private final long fixedLength;
+    
+    protected RegisteredHandler() {
+        this(false);
+    }
+
+    /** Creates the handler.
+     * @param cacheable should content of the connections be served
+     *   from the {@link URLs#configureCache cache}?
+     */
+    protected RegisteredHandler(boolean cacheable) {
+        this(cacheable, "", "", -1);
+    }
+
+    /** Creates the handler with declared metadata. Cached connections 
+     * report it without creating the real connection.
+     * @param cacheable should content of the connections be served
+     *   from the {@link URLs#configureCache cache}?
+     * @param contentType declared content type or empty string
+     * @param encoding declared content encoding or empty string
+     * @param fixedLength declared length or <code>-1</code>
+     */
+    protected RegisteredHandler(boolean cacheable, String contentType, String encoding, long fixedLength) {
+        this.cacheable = cacheable;
+        this.contentType = contentType;
+        this.encoding = encoding;
+        this.fixedLength = fixedLength;
+    }
+
+    @Override
+    protected final URLConnection openConnection(URL u) throws IOException {
+        ProtocolMetrics m = ProtocolMetrics.of(u.getProtocol());
+        Object event = Events.beginOpen();
+        boolean ok = false;
+        try {
+            URLConnection c;
+            if (cacheable) {
+                c = new CachedConnection(u, this, m);
+            } else {
+                c = createConnection(u);
+            }
+            m.opened();
+            ok = true;
+            return c;
+        } catch (IOException | RuntimeException | Error ex) {
+            m.failed();
+            throw ex;
+        } finally {
+            Events.endOpen(event, u, this, cacheable, !ok);
+        }
+    }
+    
+    /** Name of the class providing the connections, for diagnostics.
+     */
+    String implementation() {
+        return getClass().getName();
+    }
+    
+    /** Value of a header declared for this handler.
+     * @param name name of the header
+     * @return the value or <code>null</code> if not declared
+     */
+    final String declaredHeader(String name) {
+        return declaredHeader(name, contentType, encoding, fixedLength);
+    }
+    
+    /** Value of a header declared by {@link URLProtocolRegistration#contentType()},
+     * {@link URLProtocolRegistration#encoding()} or 
+     * {@link URLProtocolRegistration#fixedLength()}.
+     * 
+     * @param name name of the header
+     * @param contentType declared type or empty string
+     * @param encoding declared encoding or empty string
+     * @param length declared length or <code>-1</code>
+     * @return the value or <code>null</code> if not declared
+     */
+    protected static String declaredHeader(String name, String contentType, String encoding, long length) {
+        if ("content-type".equalsIgnoreCase(name)) {
+            return contentType.isEmpty() ? null : contentType;
+        }
+        if ("content-encoding".equalsIgnoreCase(name)) {
+            return encoding.isEmpty() ? null : encoding;
+        }
+        if ("content-length".equalsIgnoreCase(name)) {
+            return length < 0 ? null : Long.toString(length);
+        }
+        return null;
+    }
+    
+    /** Creates the connection.
+     * @param u the URL to connect to
+     * @return new connection
+     * @throws IOException if the connection cannot be created
+     */
+    protected abstract URLConnection createConnection(URL u) throws IOException;
+}
@@ -0,0 +1,56 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2012 Jaroslav Tulach <jtulach@netbeans.org>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.netbeans.geekout.demo;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** Flight recorder event emitted when {@link GlobalProxyFactory} resolves
+ * a protocol, including misses.
+ *
+ * @author Jaroslav Tulach <jtulach@netbeans.org>
+ */
+@Name("org.netbeans.geekout.demo.Resolution")
+@Label("URL Protocol Resolution")
+@Description("Search for a handler of a protocol")
+@Category({ "URLs" })
+@StackTrace(false)
+final class ResolutionEvent extends jdk.jfr.Event {
+    @Label("Protocol")
+    String protocol;
+    
+    @Label("Source")
+    @Description("Where the handler was found, MISS if nowhere")
+    String source;
+    
+    @Label("Implementation")
+    @Description("Class providing the handler")
+    String implementation;
+    
+    @Label("Context Class Loader")
+    String loader;
+}
@@ -33,9 +33,45 @@ import java.net.URLStreamHandlerFactory;
  *
  * @author Jaroslav Tulach <jtulach@netbeans.org>
  */
-@Retention(RetentionPolicy.SOURCE)
+@Retention(RetentionPolicy.CLASS)
 @Target({ ElementType.TYPE, ElementType.METHOD })
 public @interface URLProtocolRegistration {
     /** The protocol the factory can handle */
     String[] protocol();
+    
+    /** Serve repeated reads of the same URL from a shared in-memory cache.
+     * Use for connections and methods that produce the same content for
+     * the same URL. Size of the cache and expiration of its entries are 
+     * set by {@link URLs#configureCache}. Ignored for factories.
+     */
+    boolean cacheable() default false;
+    
+    /** Charset to encode text returned by annotated methods. Applies
+     * to methods returning {@link CharSequence}.
+     */
+    String charset() default "UTF-8";
+    
+    /** MIME type of the content. Reported by 
+     * {@link java.net.URLConnection#getContentType()} without connecting.
+     * Ignored for factories.
+     */
+    String contentType() default "";
+    
+    /** Encoding of the content, for example <code>gzip</code>. Reported by
+     * {@link java.net.URLConnection#getContentEncoding()} without connecting.
+     * Ignored for factories.
+     */
+    String encoding() default "";
+    
+    /** Length of the content in bytes, if it is known upfront. Reported by
+     * {@link java.net.URLConnection#getContentLengthLong()} without 
+     * connecting. Ignored for factories.
+     */
+    long fixedLength() default -1;
+    
+    /** Position among registrations of the same protocol. Registrations
+     * with lower position are tried first and the ones following the 
+     * first registration that provides a handler are never loaded.
+     */
+    int position() default Integer.MAX_VALUE;
 }
@@ -23,18 +23,293 @@
  */
 package org.netbeans.geekout.demo;
 
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  *
  * @author Jaroslav Tulach <jtulach@netbeans.org>
  */
 public class URLs {
-    /** Registers global proxy factory.
+    private static final GlobalProxyFactory FACTORY = new GlobalProxyFactory();
+    
+    /** Registers global proxy factory. Registers also 
+     * {@link URLStatisticsMXBean} in the platform MBean server.
+     * <p>
+     * Registrations are searched in the context classloader of the thread
+     * asking for a protocol and resolved handlers are cached separately
+     * for each such classloader. Note that {@link URL} itself remembers 
+     * the first handler it obtains for each protocol; containers hosting
+     * applications with different handlers for the same protocol should 
+     * create the URLs with an explicit handler.
+     * <p>
+     * When compiled against JDK 9 or newer, the annotation processor also
+     * generates a <code>java.net.spi.URLStreamHandlerProvider</code>
+     * registered in <code>META-INF/services</code>. The JDK then finds
+     * protocols registered at compile time without any global factory,
+     * so calling this method is only needed for runtime registrations,
+     * statistics and the lookup in context classloaders. Modules have to
+     * declare the provider themselves:
+     * <pre>
+     * provides java.net.spi.URLStreamHandlerProvider 
+     *     with your.pkg.URLProtocolRegistration$provider;
+     * </pre>
+     * where <code>your.pkg</code> is given to the compiler as
+     * <code>-Aorg.netbeans.geekout.demo.registryPackage=your.pkg</code>.
+     * Without the option the alphabetically first package with
+     * a registration is used, which moves when such packages are added.
      */
     public static void initialize() {
-        URL.setURLStreamHandlerFactory(new GlobalProxyFactory());
+        URL.setURLStreamHandlerFactory(FACTORY);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new Statistics(), new ObjectName(URLStatisticsMXBean.OBJECT_NAME)
+            );
+        } catch (JMException ex) {
+            Logger.getLogger(URLs.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+    
+    /** Registers global proxy factory and eagerly discovers and resolves
+     * all protocols registered on the classpath. The scanning runs in
+     * parallel in provided pool, so it is finished before the application
+     * starts to serve requests and the first request for a protocol does
+     * not have to pay for it. Time spent is logged and also reflected in
+     * {@link #getStatistics() statistics}.
+     * <p>
+     * Factories registered via <code>META-INF/services</code> cannot be
+     * enumerated upfront and are still consulted lazily.
+     * 
+     * @param pool the pool to scan classpath in, for example
+     *   {@link ForkJoinPool#commonPool()}
+     * @return names of all discovered protocols
+     */
+    public static Set<String> initialize(ForkJoinPool pool) {
+        initialize();
+        return FACTORY.preload(pool);
+    }
+    
+    /** Registers handler for given protocol at runtime. The registration
+     * takes precedence over registrations found on the classpath. Only
+     * the given protocol is re-resolved, other cached handlers are kept.
+     * <p>
+     * As with {@link #invalidate(java.lang.String[])}, {@link URL} may 
+     * keep a handler it has already obtained for the protocol.
+     * 
+     * @param protocol the protocol
+     * @param handler handler to use for the protocol
+     */
+    public static void register(String protocol, URLStreamHandler handler) {
+        FACTORY.register(protocol, handler);
+        ContentCache.getDefault().invalidate(protocol);
+    }
+    
+    /** Registers factory to create handler for given protocols at runtime. 
+     * When the factory returns <code>null</code> the classpath is searched
+     * as usual.
+     * 
+     * @param factory the factory to ask
+     * @param protocols the protocols the factory handles
+     * @see #register(java.lang.String, java.net.URLStreamHandler) 
+     */
+    public static void register(URLStreamHandlerFactory factory, String... protocols) {
+        for (String p : protocols) {
+            FACTORY.register(p, factory);
+            ContentCache.getDefault().invalidate(p);
+        }
+    }
+    
+    /** Removes runtime registration of given protocols. Next request for
+     * such protocol searches the classpath.
+     * 
+     * @param protocols the protocols to unregister
+     */
+    public static void unregister(String... protocols) {
+        for (String p : protocols) {
+            FACTORY.register(p, null);
+            ContentCache.getDefault().invalidate(p);
+        }
+    }
+    
+    /** Discards resolved handler for given protocols. Next request
+     * for such protocol scans the classpath again. Useful when new
+     * registrations appear on the classpath.
+     * <p>
+     * Only the lookup done by the global proxy factory is affected,
+     * {@link URL} keeps its own table of handlers it has already 
+     * obtained.
+     *
+     * @param protocols the protocols to forget
+     */
+    public static void invalidate(String... protocols) {
+        for (String p : protocols) {
+            FACTORY.invalidate(p);
+            ContentCache.getDefault().invalidate(p);
+        }
+    }
+    
+    /** Discards all resolved handlers as well as all remembered
+     * misses and cached content.
+     * @see #invalidate(java.lang.String[]) 
+     */
+    public static void invalidateAll() {
+        FACTORY.invalidateAll();
+        ContentCache.getDefault().clear();
+    }
+    
+    /** Configures the cache used by {@link URLProtocolRegistration#cacheable()
+     * cacheable} registrations. The cache keeps content keyed by URL and 
+     * evicts least recently used entries when the total size exceeds
+     * the limit. Content larger than a fraction of the limit is never
+     * cached. By default the cache holds up to 16MB without expiration.
+     * Reconfiguring discards all cached content.
+     * 
+     * @param maxBytes maximal total size of cached content, 
+     *   <code>0</code> disables caching
+     * @param ttl how long content remains valid after it is cached,
+     *   <code>0</code> means forever
+     * @param unit unit of the <code>ttl</code>
+     */
+    public static void configureCache(long maxBytes, long ttl, TimeUnit unit) {
+        ContentCache.configure(maxBytes, ttl, unit);
+    }
+    
+    /** Configures protocols the global proxy factory does not search for.
+     * Requests for them are answered by <code>null</code> without scanning
+     * the classpath, so the JDK handles them. By default
+     * <code>file</code>, <code>jar</code>, <code>jrt</code>, 
+     * <code>http</code>, <code>https</code>, <code>ftp</code>, 
+     * <code>mailto</code>, <code>netdoc</code> and protocols listed
+     * in the <code>org.netbeans.geekout.demo.bypass</code> system 
+     * property (separated by commas) are bypassed. Protocols
+     * {@link #register(java.lang.String, java.net.URLStreamHandler) registered
+     * at runtime} or by {@link URLProtocolRegistration} (found in the
+     * generated index or registry) are never bypassed; the annotation
+     * processor warns when such a registration replaces a protocol of the JDK.
+     * <p>
+     * In index only mode other protocols are searched for only when
+     * they are listed in the index generated for 
+     * {@link URLProtocolRegistration} annotations, which is read once per
+     * classloader. Factories registered in <code>META-INF/services</code> 
+     * and registrations made by older versions of the annotation processor
+     * are then consulted just for the listed protocols.
+     * 
+     * @param protocols the protocols to bypass, <code>null</code> to
+     *   use the default ones
+     * @param indexOnly <code>true</code> to search only protocols in the index
+     */
+    public static void configureBypass(Collection<String> protocols, boolean indexOnly) {
+        FACTORY.configureBypass(protocols, indexOnly);
+    }
+    
+    /** Opens stream of given URL without blocking the calling thread.
+     * The connection is opened in a virtual thread, when the JDK supports 
+     * them, or in a thread of a shared pool otherwise.
+     * 
+     * @param url the URL to open
+     * @return future completed with the stream
+     * @see #openAsync(java.net.URL, java.util.concurrent.Executor) 
+     */
+    public static CompletableFuture<InputStream> openAsync(URL url) {
+        return openAsync(url, OpenTask.defaultExecutor());
+    }
+    
+    /** Opens stream of given URL in provided executor. The future is 
+     * completed with the stream or with the exception thrown by the 
+     * protocol handler, as is. Cancelling the future interrupts the thread
+     * opening the connection and closes the stream if it gets opened
+     * anyway.
+     * 
+     * @param url the URL to open
+     * @param executor executor to open the connection in
+     * @return future completed with the stream
+     */
+    public static CompletableFuture<InputStream> openAsync(URL url, Executor executor) {
+        return OpenTask.submit(url, executor);
     }
     
+    /** Opens streams of many URLs concurrently. At most 
+     * <code>parallelism</code> connections are being opened at once,
+     * in virtual threads or in a shared pool as with 
+     * {@link #openAsync(java.net.URL)}. The URLs are opened in the
+     * given order.
+     * <p>
+     * The returned futures are in the order of the URLs. Each completes 
+     * as soon as its stream is open, so one can either process them in 
+     * order or react to each as it completes.
+     * 
+     * @param urls the URLs to open
+     * @param parallelism maximal number of connections opened at once
+     * @return futures with streams, one per each URL, in the same order
+     * @throws IllegalArgumentException if parallelism is not positive
+     */
+    public static List<CompletableFuture<InputStream>> openAll(Collection<URL> urls, int parallelism) {
+        return openAll(urls, parallelism, OpenTask.defaultExecutor());
+    }
     
+    /** Opens streams of many URLs concurrently in provided executor.
+     * 
+     * @param urls the URLs to open
+     * @param parallelism maximal number of connections opened at once
+     * @param executor executor to open the connections in
+     * @return futures with streams, one per each URL, in the same order
+     * @throws IllegalArgumentException if parallelism is not positive
+     * @see #openAll(java.util.Collection, int) 
+     */
+    public static List<CompletableFuture<InputStream>> openAll(
+        Collection<URL> urls, int parallelism, Executor executor
+    ) {
+        return BatchOpen.submit(urls, parallelism, executor);
+    }
+    
+    /** Snapshot of statistics collected for each protocol resolved so far.
+     * Protocols no handler has been found for are not included.
+     * @return map from protocol name to its statistics
+     */
+    public static Map<String,ProtocolStatistics> getStatistics() {
+        Map<String,ProtocolStatistics> res = new TreeMap<>();
+        for (ProtocolMetrics m : ProtocolMetrics.all()) {
+            res.put(m.protocol, m.snapshot());
+        }
+        return res;
+    }
+    
+    /** Resets all collected statistics to zero. Connections and handlers
+     * that already exist keep reporting into the reset counters.
+     */
+    public static void resetStatistics() {
+        ProtocolMetrics.resetAll();
+    }
+    
+    static GlobalProxyFactory getFactory() {
+        return FACTORY;
+    }
+    
+    private static final class Statistics implements URLStatisticsMXBean {
+        @Override
+        public Map<String, ProtocolStatistics> getStatistics() {
+            return URLs.getStatistics();
+        }
+
+        @Override
+        public void reset() {
+            resetStatistics();
+        }
+    }
 }
@@ -23,11 +23,22 @@
  */
 package org.netbeans.geekout.demo.processor;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.processing.AbstractProcessor;
@@ -35,7 +46,6 @@ import javax.annotation.processing.Completion;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
-import javax.annotation.processing.SupportedSourceVersion;
 import javax.lang.model.SourceVersion;
 import javax.lang.model.element.AnnotationMirror;
 import javax.lang.model.element.Element;
@@ -43,6 +53,9 @@ import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
 import javax.lang.model.type.TypeMirror;
 import javax.tools.Diagnostic;
 import javax.tools.FileObject;
@@ -52,17 +65,79 @@ import org.netbeans.geekout.demo.URLProtocolRegistration;
 import org.openide.util.NbBundle;
 import org.openide.util.lookup.ServiceProvider;
 
-/**
+/** Generates handlers and wrappers for {@link URLProtocolRegistration}
+ * and collects all registrations into <code>META-INF/urls.index</code>,
+ * a generated {@link org.netbeans.geekout.demo.ProtocolRegistry} and
+ * <code>native-image</code> configuration.
+ * The processor is aggregating: outputs are written once, when processing
+ * is over, and registrations from an index left by previous compilation
+ * are kept, unless their classes are being compiled again. That makes it
+ * usable with incremental compilation of Gradle, Maven and IDEs.
+ * <p>
+ * The registry and the <code>java.net.spi.URLStreamHandlerProvider</code>
+ * are generated into the package given by the {@value #PACKAGE_OPTION}
+ * option, e.g. <code>-Aorg.netbeans.geekout.demo.registryPackage=your.pkg</code>.
+ * Without the option the alphabetically first package containing
+ * a registration is used, which changes when registrations are added
+ * to a package sorting before it; modules declaring the provider should
+ * therefore set the option.
  *
  * @author Jaroslav Tulach <jtulach@netbeans.org>
  */
 @ServiceProvider(service=Processor.class)
 @SupportedAnnotationTypes("org.netbeans.geekout.demo.URLProtocolRegistration")
-@SupportedSourceVersion(SourceVersion.RELEASE_6)
 public class URLProtocolRegistrationProcessor extends AbstractProcessor {
+    private static final String INDEX = "META-INF/urls.index";
+    private static final String REGISTRY = "URLProtocolRegistration$registry";
+    private static final String PROVIDER = "URLProtocolRegistration$provider";
+    /** average number of protocols per generated method of the registry,
+     * keeps the methods far below the 64KB limit of bytecode */
+    private static final int CHUNK = 256;
+    /** processor option selecting package of the generated registry and provider */
+    public static final String PACKAGE_OPTION = "org.netbeans.geekout.demo.registryPackage";
+    private static final String PROVIDER_SPI = "java.net.spi.URLStreamHandlerProvider";
+    /** protocols the library leaves to the JDK unless registered,
+     * kept in sync with <code>GlobalProxyFactory.DEFAULT_BYPASS</code>
+     */
+    private static final Set<String> JDK_PROTOCOLS = new HashSet<String>(Arrays.asList(
+        "file", "jar", "jrt", "http", "https", "ftp", "mailto", "netdoc"
+    ));
+    
+    /** lines of <code>META-INF/urls.index</code> collected over all rounds */
+    private final SortedSet<String> index = new TreeSet<String>();
+    /** elements contributing to the index */
+    private final List<Element> indexOrigins = new ArrayList<Element>();
+    /** top level classes compiled in this compilation */
+    private final Set<String> compiled = new HashSet<String>();
+    /** has a source been generated in current round? */
+    private boolean generatedInRound;
+    /** index lines covered by the generated registry, if any */
+    private SortedSet<String> registryLines;
+    /** binary name of the generated registry */
+    private String registryName;
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(PACKAGE_OPTION);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
 
     @Override
     public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            return true;
+        }
+        generatedInRound = false;
+        for (Element e : roundEnv.getRootElements()) {
+            if (e instanceof TypeElement) {
+                compiled.add(topLevel(processingEnv.getElementUtils().getBinaryName((TypeElement) e).toString()));
+            }
+        }
         TypeMirror factoryType = processingEnv.getElementUtils().getTypeElement("java.net.URLStreamHandlerFactory").asType();
         TypeMirror connType = processingEnv.getElementUtils().getTypeElement("java.net.URLConnection").asType();
         TypeMirror urlType = processingEnv.getElementUtils().getTypeElement("java.net.URL").asType();
@@ -72,30 +147,38 @@ public class URLProtocolRegistrationProcessor extends AbstractProcessor {
                     Diagnostic.Kind.ERROR, "Class has to be public", e
                 );
             }
+            for (String p : e.getAnnotation(URLProtocolRegistration.class).protocol()) {
+                if (JDK_PROTOCOLS.contains(p)) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, 
+                        "Protocol " + p + " is handled by the JDK. The registration replaces it "
+                        + "for every URL once the library's factory is installed", e
+                    );
+                }
+            }
             if (e.getKind() == ElementKind.METHOD) {
                 generateWrapperAroundMethod(e, roundEnv);
                 continue;
             }
             
             
+            ExecutableElement constructor = null;
             if (!processingEnv.getTypeUtils().isAssignable(e.asType(), factoryType)) {
                 if (!processingEnv.getTypeUtils().isAssignable(e.asType(), connType)) {
                     processingEnv.getMessager().printMessage(
                         Diagnostic.Kind.ERROR, "Has to implement URLStreamHandlerFactory or URLConnection", e
                     );
                 } else {
-                    boolean found = false;
                     for (Element c : e.getEnclosedElements()) {
                         if (ElementKind.CONSTRUCTOR != c.getKind()) {
                             continue;
                         }
                         ExecutableElement ee = (ExecutableElement)c;
                         if (ee.getParameters().size() == 1 && ee.getParameters().get(0).asType() == urlType) {
-                            found = true;
+                            constructor = ee;
                             break;
                         }
                     }
-                    if (!found) {
+                    if (constructor == null) {
                         processingEnv.getMessager().printMessage(
                             Diagnostic.Kind.ERROR, "Must have constructor with URL parameter", e
                         );
@@ -105,58 +188,678 @@ public class URLProtocolRegistrationProcessor extends AbstractProcessor {
             
             try {
                 URLProtocolRegistration upr = e.getAnnotation(URLProtocolRegistration.class);
+                String binaryName = processingEnv.getElementUtils().getBinaryName((TypeElement)e).toString();
+                String kind = processingEnv.getTypeUtils().isAssignable(e.asType(), factoryType) ? "factory" : "connection";
+                String handler = constructor == null ? null : generateHandler((TypeElement)e, constructor, upr);
+                String position = upr.position() == Integer.MAX_VALUE ? "" : " position=" + upr.position();
                 for (String p : upr.protocol()) {
-                    FileObject res = processingEnv.getFiler().createResource(
-                        StandardLocation.CLASS_OUTPUT, "",
-                        "META-INF/urls/" + p, e
-                    );
-                    String binaryName = processingEnv.getElementUtils().getBinaryName((TypeElement)e).toString();
-                    res.openWriter().append(binaryName).append("\n").close();
+                    index.add(p + " " + kind + " " + binaryName + (handler == null ? "" : " " + handler) + position);
                 }
+                indexOrigins.add(e);
             } catch (IOException ex) {
                 processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ex.getMessage(), e);
             }
         }
+        if (!generatedInRound && registryLines == null) {
+            writeRegistry();
+        }
         return true;
     }
 
+    /** Generates handler instantiating the connection directly, without
+     * any reflection.
+     * @return binary name of the generated handler
+     */
+    private String generateHandler(TypeElement e, ExecutableElement constructor, URLProtocolRegistration upr) throws IOException {
+        String packageName = processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(e).toString();
+        String clsName = binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1) + "$handler";
+        
+        String create = "return new " + e.getQualifiedName() + "(u);";
+        boolean declared = !upr.contentType().isEmpty() || !upr.encoding().isEmpty() || upr.fixedLength() >= 0;
+        TypeElement methodConnection = processingEnv.getElementUtils().getTypeElement("org.netbeans.geekout.demo.MethodConnection");
+        boolean reportsItself = methodConnection != null && 
+            processingEnv.getTypeUtils().isAssignable(e.asType(), methodConnection.asType());
+        if (declared && !reportsItself) {
+            if (e.getModifiers().contains(Modifier.FINAL)) {
+                processingEnv.getMessager().printMessage(
+                    Diagnostic.Kind.ERROR, "Connection with declared content metadata cannot be final", e
+                );
+            }
+            create = "return new " + e.getQualifiedName() + "(u) {\n"
+                + "            @Override\n"
+                + "            public String getHeaderField(String name) {\n"
+                + "                String v = declaredHeader(name, " + literal(upr.contentType()) + ", " 
+                + literal(upr.encoding()) + ", " + upr.fixedLength() + "L);\n"
+                + "                return v != null ? v : super.getHeaderField(name);\n"
+                + "            }\n"
+                + "        };";
+        }
+        String body = callThrowingIOException(create, constructor, "        ");
+        
+        JavaFileObject src = processingEnv.getFiler().createSourceFile(
+            packageName.isEmpty() ? clsName : packageName + '.' + clsName, e
+        );
+        generatedInRound = true;
+        Writer w = src.openWriter();
+        if (!packageName.isEmpty()) {
+            w.append("package " + packageName + ";\n\n");
+        }
+        w.append(
+              "import java.io.IOException;\n"
+            + "import java.net.URL;\n"
+            + "import java.net.URLConnection;\n"
+            + "import org.netbeans.geekout.demo.RegisteredHandler;\n"
+            + "\n"
+            + "public final class " + clsName + " extends RegisteredHandler {\n"
+            + "    public " + clsName + "() {\n"
+            + "        super(" + upr.cacheable() + (declared ? ", " + literal(upr.contentType()) + ", "
+                + literal(upr.encoding()) + ", " + upr.fixedLength() + "L" : "") + ");\n"
+            + "    }\n"
+            + "\n"
+            + "    @Override\n"
+            + "    protected URLConnection createConnection(URL u) throws IOException {\n"
+            + body
+            + "    }\n"
+            + "}\n"
+        );
+        w.close();
+        return packageName.isEmpty() ? clsName : packageName + '.' + clsName;
+    }
+
+    /** Generates code invoking given statement and rethrowing everything
+     * as {@link IOException}. Wrapping is only generated when the
+     * invoked method declares other checked exceptions.
+     */
+    private String callThrowingIOException(String statement, ExecutableElement method, String indent) {
+        TypeMirror ioe = processingEnv.getElementUtils().getTypeElement("java.io.IOException").asType();
+        TypeMirror re = processingEnv.getElementUtils().getTypeElement("java.lang.RuntimeException").asType();
+        TypeMirror err = processingEnv.getElementUtils().getTypeElement("java.lang.Error").asType();
+        boolean wrap = false;
+        for (TypeMirror t : method.getThrownTypes()) {
+            if (
+                !processingEnv.getTypeUtils().isAssignable(t, ioe) &&
+                !processingEnv.getTypeUtils().isAssignable(t, re) &&
+                !processingEnv.getTypeUtils().isAssignable(t, err)
+            ) {
+                wrap = true;
+            }
+        }
+        if (!wrap) {
+            return indent + statement + "\n";
+        }
+        return indent + "try {\n"
+            + indent + "    " + statement + "\n"
+            + indent + "} catch (RuntimeException ex) {\n"
+            + indent + "    throw ex;\n"
+            + indent + "} catch (Exception ex) {\n"
+            + indent + "    if (ex instanceof IOException) {\n"
+            + indent + "        throw (IOException)ex;\n"
+            + indent + "    }\n"
+            + indent + "    throw new IOException(ex);\n"
+            + indent + "}\n";
+    }
+
+    private static String literal(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    private static boolean isByteArray(TypeMirror type) {
+        return type.getKind() == TypeKind.ARRAY 
+            && ((ArrayType) type).getComponentType().getKind() == TypeKind.BYTE;
+    }
+
+    /** Is the type assignable to <code>generic&lt;? extends arg&gt;</code>
+     * for one of the arguments?
+     */
+    private boolean isAssignableTo(TypeMirror type, String generic, String... args) {
+        TypeElement g = processingEnv.getElementUtils().getTypeElement(generic);
+        if (g == null) {
+            return false;
+        }
+        for (String a : args) {
+            TypeMirror bound = processingEnv.getElementUtils().getTypeElement(a).asType();
+            TypeMirror expected = processingEnv.getTypeUtils().getDeclaredType(
+                g, processingEnv.getTypeUtils().getWildcardType(bound, null)
+            );
+            if (processingEnv.getTypeUtils().isAssignable(type, expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAssignable(TypeMirror type, String... classNames) {
+        for (String n : classNames) {
+            TypeMirror t = processingEnv.getElementUtils().getTypeElement(n).asType();
+            if (processingEnv.getTypeUtils().isAssignable(type, t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Writes one sorted index of all registrations in this compilation
+     * merged with still valid registrations of the previous one.
+     * Lines are <code>protocol kind class [handler] [position=n]</code> where
+     * kind is either <code>factory</code> or <code>connection</code>. 
+     * Connections may be accompanied by name of generated handler. Position
+     * is only present when specified. Also writes
+     * <code>META-INF/urls/protocol</code> files for older versions of
+     * the library, one per protocol, even if more classes register it.
+     */
+    private void writeIndex() {
+        SortedSet<String> all = allEntries();
+        if (all.isEmpty()) {
+            return;
+        }
+        if (registryLines != null && !registryLines.equals(all)) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, 
+                "Registrations found after " + registryName + " was generated are only available via " + INDEX
+            );
+        }
+        writeNativeImageConfig(all);
+        Element[] origins = indexOrigins.toArray(new Element[indexOrigins.size()]);
+        Map<String,List<String[]>> perProtocol = new TreeMap<String,List<String[]>>();
+        try {
+            FileObject res = processingEnv.getFiler().createResource(
+                StandardLocation.CLASS_OUTPUT, "", INDEX, origins
+            );
+            Writer w = res.openWriter();
+            w.append("# protocol kind class [handler] [position=n]\n");
+            for (String line : all) {
+                w.append(line).append("\n");
+                String[] arr = line.split(" ");
+                List<String[]> entries = perProtocol.get(arr[0]);
+                if (entries == null) {
+                    entries = new ArrayList<String[]>();
+                    perProtocol.put(arr[0], entries);
+                }
+                entries.add(arr);
+            }
+            w.close();
+            for (Map.Entry<String,List<String[]>> entry : perProtocol.entrySet()) {
+                List<String[]> entries = entry.getValue();
+                Collections.sort(entries, new Comparator<String[]>() {
+                    @Override
+                    public int compare(String[] a, String[] b) {
+                        return Integer.compare(position(a), position(b));
+                    }
+                });
+                FileObject p = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT, "", "META-INF/urls/" + entry.getKey(), origins
+                );
+                Writer pw = p.openWriter();
+                for (String[] arr : entries) {
+                    if (arr.length > 3 && !arr[3].startsWith("position=")) {
+                        pw.append(arr[3]).append("\n");
+                    }
+                    pw.append(arr[2]).append("\n");
+                }
+                pw.close();
+            }
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ex.getMessage());
+        }
+    }
+    
+    /** Registrations of this compilation merged with the ones of 
+     * previous compilation.
+     */
+    private SortedSet<String> allEntries() {
+        SortedSet<String> all = new TreeSet<String>(index);
+        all.addAll(previousIndex());
+        return all;
+    }
+    
+    /** Generates {@link org.netbeans.geekout.demo.ProtocolRegistry} 
+     * instantiating all registrations directly into the package given by
+     * {@link #PACKAGE_OPTION} or the first package with a registration.
+     * Called in the first round that generates no other sources, so the
+     * handlers and wrappers it refers to already exist. Protocols are split
+     * by their hash code into buckets of about {@link #CHUNK}, each with
+     * its own methods, so no method gets too large to compile. Files created when processing is over would not
+     * be compiled without a warning.
+     */
+    private void writeRegistry() {
+        SortedSet<String> all = allEntries();
+        if (all.isEmpty()) {
+            return;
+        }
+        Map<String,List<String[]>> perProtocol = new TreeMap<String,List<String[]>>();
+        String packageName = null;
+        for (String line : all) {
+            String[] arr = line.split(" ");
+            TypeElement type = findType(arr[2]);
+            if (type == null) {
+                continue;
+            }
+            String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+            if (packageName == null || pkg.compareTo(packageName) < 0) {
+                packageName = pkg;
+            }
+            String create;
+            if ("factory".equals(arr[1])) {
+                if (!isInstantiable(type)) {
+                    continue;
+                }
+                create = "new " + type.getQualifiedName() + "().createURLStreamHandler(protocol)";
+            } else {
+                TypeElement handler = arr.length > 3 && !arr[3].startsWith("position=") ? findType(arr[3]) : null;
+                if (handler == null) {
+                    continue;
+                }
+                create = "new " + handler.getQualifiedName() + "()";
+            }
+            List<String[]> entries = perProtocol.get(arr[0]);
+            if (entries == null) {
+                entries = new ArrayList<String[]>();
+                perProtocol.put(arr[0], entries);
+            }
+            entries.add(new String[] { create, Integer.toString(position(arr)) });
+        }
+        if (packageName == null) {
+            return;
+        }
+        String explicit = processingEnv.getOptions().get(PACKAGE_OPTION);
+        if (explicit != null) {
+            if (!explicit.isEmpty() && !SourceVersion.isName(explicit)) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, 
+                    "Option " + PACKAGE_OPTION + " is not a package name: " + explicit
+                );
+                return;
+            }
+            packageName = explicit;
+        }
+        registryName = packageName.isEmpty() ? REGISTRY : packageName + '.' + REGISTRY;
+        registryLines = all;
+        List<String> names = new ArrayList<String>(perProtocol.keySet());
+        int buckets = Math.max(1, (names.size() + CHUNK - 1) / CHUNK);
+        StringBuilder[] positions = new StringBuilder[buckets];
+        StringBuilder[] create = new StringBuilder[buckets];
+        for (int b = 0; b < buckets; b++) {
+            positions[b] = new StringBuilder();
+            create[b] = new StringBuilder();
+        }
+        for (Map.Entry<String,List<String[]>> entry : perProtocol.entrySet()) {
+            Collections.sort(entry.getValue(), new Comparator<String[]>() {
+                @Override
+                public int compare(String[] a, String[] b) {
+                    return Integer.compare(Integer.parseInt(a[1]), Integer.parseInt(b[1]));
+                }
+            });
+            int b = (entry.getKey().hashCode() & 0x7fffffff) % buckets;
+            positions[b].append("        if (").append(literal(entry.getKey())).append(".equals(protocol)) {\n");
+            positions[b].append("            return new int[] { ");
+            create[b].append("        if (").append(literal(entry.getKey())).append(".equals(protocol)) {\n");
+            create[b].append("            switch (index) {\n");
+            int i = 0;
+            for (String[] candidate : entry.getValue()) {
+                positions[b].append(i == 0 ? "" : ", ").append(candidate[1]);
+                create[b].append("                case ").append(i++).append(": return ").append(candidate[0]).append(";\n");
+            }
+            positions[b].append(" };\n");
+            positions[b].append("        }\n");
+            create[b].append("            }\n");
+            create[b].append("        }\n");
+        }
+        try {
+            Element[] origins = indexOrigins.toArray(new Element[indexOrigins.size()]);
+            JavaFileObject src = processingEnv.getFiler().createSourceFile(registryName, origins);
+            Writer w = src.openWriter();
+            if (!packageName.isEmpty()) {
+                w.append("package " + packageName + ";\n\n");
+            }
+            w.append(
+                  "import java.net.URLStreamHandler;\n"
+                + "import org.netbeans.geekout.demo.ProtocolRegistry;\n"
+                + "\n"
+                + "public final class " + REGISTRY + " extends ProtocolRegistry {\n"
+                + "    @Override\n"
+                + "    protected String[] protocols() {\n"
+                + "        String[] arr = new String[" + names.size() + "];\n"
+            );
+            for (int b = 0; b < buckets; b++) {
+                w.append("        protocols" + b + "(arr);\n");
+            }
+            w.append(
+                  "        return arr;\n"
+                + "    }\n"
+                + "\n"
+                + "    @Override\n"
+                + "    protected int[] positions(String protocol) {\n"
+                + "        switch (bucket(protocol)) {\n"
+            );
+            for (int b = 0; b < buckets; b++) {
+                w.append("            case " + b + ": return positions" + b + "(protocol);\n");
+            }
+            w.append(
+                  "            default: return new int[0];\n"
+                + "        }\n"
+                + "    }\n"
+                + "\n"
+                + "    @Override\n"
+                + "    protected URLStreamHandler create(String protocol, int index) {\n"
+                + "        switch (bucket(protocol)) {\n"
+            );
+            for (int b = 0; b < buckets; b++) {
+                w.append("            case " + b + ": return create" + b + "(protocol, index);\n");
+            }
+            w.append(
+                  "            default: return null;\n"
+                + "        }\n"
+                + "    }\n"
+                + "\n"
+                + "    @Override\n"
+                + "    protected URLStreamHandler create(String protocol) {\n"
+                + "        return super.create(protocol);\n"
+                + "    }\n"
+                + "\n"
+                + "    private static int bucket(String protocol) {\n"
+                + "        return (protocol.hashCode() & 0x7fffffff) % " + buckets + ";\n"
+                + "    }\n"
+            );
+            for (int b = 0; b < buckets; b++) {
+                w.append("\n    private static void protocols" + b + "(String[] arr) {\n");
+                for (int i = b * CHUNK; i < Math.min(names.size(), (b + 1) * CHUNK); i++) {
+                    w.append("        arr[" + i + "] = " + literal(names.get(i)) + ";\n");
+                }
+                w.append("    }\n");
+                w.append("\n    private static int[] positions" + b + "(String protocol) {\n");
+                w.append(positions[b]);
+                w.append("        return new int[0];\n");
+                w.append("    }\n");
+                w.append("\n    private static URLStreamHandler create" + b + "(String protocol, int index) {\n");
+                w.append(create[b]);
+                w.append("        return null;\n");
+                w.append("    }\n");
+            }
+            w.append("}\n");
+            w.close();
+            FileObject services = processingEnv.getFiler().createResource(
+                StandardLocation.CLASS_OUTPUT, "", "META-INF/services/org.netbeans.geekout.demo.ProtocolRegistry", origins
+            );
+            Writer sw = services.openWriter();
+            sw.append(registryName).append("\n");
+            sw.close();
+            if (processingEnv.getElementUtils().getTypeElement(PROVIDER_SPI) != null) {
+                writeProvider(packageName, origins);
+            }
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ex.getMessage());
+        }
+    }
+    
+    /** Generates {@link java.net.URL} handler provider delegating to the
+     * registry, so the JDK finds the protocols even without 
+     * {@link org.netbeans.geekout.demo.URLs#initialize()}. Only done when
+     * compiling against JDK 9 or newer.
+     */
+    private void writeProvider(String packageName, Element[] origins) throws IOException {
+        String providerName = packageName.isEmpty() ? PROVIDER : packageName + '.' + PROVIDER;
+        JavaFileObject src = processingEnv.getFiler().createSourceFile(providerName, origins);
+        Writer w = src.openWriter();
+        if (!packageName.isEmpty()) {
+            w.append("package " + packageName + ";\n\n");
+        }
+        w.append(
+              "import java.net.URLStreamHandler;\n"
+            + "import " + PROVIDER_SPI + ";\n"
+            + "\n"
+            + "public final class " + PROVIDER + " extends URLStreamHandlerProvider {\n"
+            + "    private final " + REGISTRY + " registry = new " + REGISTRY + "();\n"
+            + "\n"
+            + "    @Override\n"
+            + "    public URLStreamHandler createURLStreamHandler(String protocol) {\n"
+            + "        return registry.create(protocol);\n"
+            + "    }\n"
+            + "}\n"
+        );
+        w.close();
+        FileObject services = processingEnv.getFiler().createResource(
+            StandardLocation.CLASS_OUTPUT, "", "META-INF/services/" + PROVIDER_SPI, origins
+        );
+        Writer sw = services.openWriter();
+        sw.append(providerName).append("\n");
+        sw.close();
+    }
+    
+    /** Writes <code>reflect-config.json</code> and <code>resource-config.json</code>
+     * for GraalVM <code>native-image</code>, so the fallback to the index
+     * works in native images too.
+     */
+    private void writeNativeImageConfig(SortedSet<String> all) {
+        Set<String> noArg = new TreeSet<String>();
+        Set<String> urlArg = new TreeSet<String>();
+        Set<String> protocols = new TreeSet<String>();
+        for (String line : all) {
+            String[] arr = line.split(" ");
+            protocols.add(arr[0]);
+            if ("factory".equals(arr[1])) {
+                noArg.add(arr[2]);
+            } else {
+                urlArg.add(arr[2]);
+            }
+            if (arr.length > 3 && !arr[3].startsWith("position=")) {
+                noArg.add(arr[3]);
+            }
+        }
+        if (registryName != null) {
+            noArg.add(registryName);
+            if (processingEnv.getElementUtils().getTypeElement(PROVIDER_SPI) != null) {
+                noArg.add(registryName.substring(0, registryName.length() - REGISTRY.length()) + PROVIDER);
+            }
+        }
+        String pkg = registryName == null ? "" : registryName.substring(0, registryName.length() - REGISTRY.length());
+        String folder = "META-INF/native-image/" + (pkg.isEmpty() ? "urls" : pkg.substring(0, pkg.length() - 1)) + "/";
+        Element[] origins = indexOrigins.toArray(new Element[indexOrigins.size()]);
+        try {
+            FileObject reflect = processingEnv.getFiler().createResource(
+                StandardLocation.CLASS_OUTPUT, "", folder + "reflect-config.json", origins
+            );
+            Writer w = reflect.openWriter();
+            w.append("[\n");
+            String sep = "";
+            for (String cls : noArg) {
+                w.append(sep).append("  { \"name\" : \"").append(cls).append("\", \"methods\" : [ { \"name\" : \"<init>\", \"parameterTypes\" : [] } ] }");
+                sep = ",\n";
+            }
+            for (String cls : urlArg) {
+                w.append(sep).append("  { \"name\" : \"").append(cls).append("\", \"methods\" : [ { \"name\" : \"<init>\", \"parameterTypes\" : [ \"java.net.URL\" ] } ] }");
+                sep = ",\n";
+            }
+            w.append("\n]\n");
+            w.close();
+            FileObject resources = processingEnv.getFiler().createResource(
+                StandardLocation.CLASS_OUTPUT, "", folder + "resource-config.json", origins
+            );
+            w = resources.openWriter();
+            w.append("{\n  \"resources\" : {\n    \"includes\" : [\n");
+            w.append("      { \"pattern\" : \"\\\\Q").append(INDEX).append("\\\\E\" }");
+            for (String p : protocols) {
+                w.append(",\n      { \"pattern\" : \"\\\\QMETA-INF/urls/").append(p).append("\\\\E\" }");
+            }
+            w.append("\n    ]\n  }\n}\n");
+            w.close();
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, ex.getMessage());
+        }
+    }
+    
+    private TypeElement findType(String binaryName) {
+        TypeElement type = processingEnv.getElementUtils().getTypeElement(binaryName);
+        if (type == null) {
+            type = processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.'));
+        }
+        return type;
+    }
+    
+    /** Can the registry call <code>new type()</code>? */
+    private static boolean isInstantiable(TypeElement type) {
+        if (!type.getModifiers().contains(Modifier.PUBLIC) || type.getModifiers().contains(Modifier.ABSTRACT)) {
+            return false;
+        }
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+            return false;
+        }
+        for (Element c : type.getEnclosedElements()) {
+            if (c.getKind() == ElementKind.CONSTRUCTOR) {
+                ExecutableElement ee = (ExecutableElement) c;
+                if (ee.getParameters().isEmpty()) {
+                    return ee.getModifiers().contains(Modifier.PUBLIC) && ee.getThrownTypes().isEmpty();
+                }
+            }
+        }
+        return false;
+    }
+    
+    /** Reads index generated by previous compilation into the same output.
+     * Registrations of classes compiled now are dropped, they are either
+     * in {@link #index} again or not registered anymore. Registrations of
+     * classes that no longer exist are dropped too.
+     */
+    private List<String> previousIndex() {
+        List<String> lines = new ArrayList<String>();
+        try {
+            FileObject prev = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            BufferedReader r = new BufferedReader(new InputStreamReader(prev.openInputStream(), "UTF-8"));
+            try {
+                for (;;) {
+                    String line = r.readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    String[] arr = line.trim().split(" +");
+                    if (line.startsWith("#") || arr.length < 3) {
+                        continue;
+                    }
+                    if (compiled.contains(topLevel(arr[2]))) {
+                        continue;
+                    }
+                    if (
+                        processingEnv.getElementUtils().getTypeElement(arr[2]) == null &&
+                        processingEnv.getElementUtils().getTypeElement(arr[2].replace('$', '.')) == null
+                    ) {
+                        continue;
+                    }
+                    lines.add(line.trim());
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            // no previous index
+        }
+        return lines;
+    }
+    
+    private static int position(String[] line) {
+        String last = line[line.length - 1];
+        if (line.length > 3 && last.startsWith("position=")) {
+            return Integer.parseInt(last.substring(9));
+        }
+        return Integer.MAX_VALUE;
+    }
+    
+    /** Name of top level class as written in source. Handles also
+     * wrappers generated for methods.
+     */
+    private static String topLevel(String binaryName) {
+        int dot = binaryName.lastIndexOf('.');
+        int dollar = binaryName.indexOf('$', dot + 1);
+        return dollar == -1 ? binaryName : binaryName.substring(0, dollar);
+    }
+
     private void generateWrapperAroundMethod(Element e, RoundEnvironment roundEnv) {
+        ExecutableElement method = (ExecutableElement) e;
+        if (!method.getModifiers().contains(Modifier.STATIC)) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR, "Method has to be static", e
+            );
+            return;
+        }
+        TypeMirror urlType = processingEnv.getElementUtils().getTypeElement("java.net.URL").asType();
+        TypeMirror inputType = processingEnv.getElementUtils().getTypeElement("java.io.InputStream").asType();
+        List<? extends VariableElement> params = method.getParameters();
+        boolean output = params.size() == 2 && processingEnv.getTypeUtils().isSameType(params.get(1).asType(), inputType);
+        if (
+            (params.size() != 1 && !output) || 
+            !processingEnv.getTypeUtils().isSameType(params.get(0).asType(), urlType)
+        ) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR, "Method has to have single URL parameter optionally followed by InputStream", e
+            );
+            return;
+        }
+        boolean returnsVoid = method.getReturnType().getKind() == TypeKind.VOID;
+        if (returnsVoid && !output) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR, "Only methods taking InputStream may return void", e
+            );
+            return;
+        }
+        if (!returnsVoid && !isByteArray(method.getReturnType()) && !isAssignable(method.getReturnType(), 
+            "java.io.InputStream", "java.nio.ByteBuffer", "java.nio.channels.ReadableByteChannel",
+            "java.nio.file.Path", "java.io.File", "java.lang.CharSequence"
+        ) && !isAssignableTo(method.getReturnType(), "java.util.concurrent.CompletionStage", 
+            "java.io.InputStream", "java.nio.ByteBuffer"
+        ) && !isAssignableTo(method.getReturnType(), "java.util.concurrent.Flow.Publisher", 
+            "java.nio.ByteBuffer"
+        )) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR, "Method has to return InputStream, ByteBuffer, ReadableByteChannel, Path, File, byte[], CharSequence, "
+                + "CompletionStage<InputStream>, CompletionStage<ByteBuffer> or Flow.Publisher<ByteBuffer>", e
+            );
+            return;
+        }
+        URLProtocolRegistration upr = e.getAnnotation(URLProtocolRegistration.class);
+        if (!Charset.isSupported(upr.charset())) {
+            processingEnv.getMessager().printMessage(
+                Diagnostic.Kind.ERROR, "Unsupported charset " + upr.charset(), e
+            );
+            return;
+        }
         String methodName = e.getSimpleName().toString();
         String binaryName = e.getEnclosingElement().getSimpleName().toString();
+        String call = binaryName + "." + methodName + (output ? "(url, input());" : "(url);");
+        String body = returnsVoid ?
+            callThrowingIOException(call, method, "        ") + "        return null;\n" :
+            callThrowingIOException("return " + call, method, "        ");
         String packageName = processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().toString();
-        URLProtocolRegistration upr = e.getAnnotation(URLProtocolRegistration.class);
         for (String p : upr.protocol()) {
             try {
                 String clsName = binaryName + "$url$" + p;
                 JavaFileObject wraper = processingEnv.getFiler().createSourceFile(packageName + '.' + clsName, e);
+                generatedInRound = true;
                 Writer w = wraper.openWriter();
                 String code = 
                         "package " + packageName + ";\n"
                         + "\n"
                         + "import java.io.IOException;\n"
-                        + "import java.io.InputStream;\n"
-                        + "import java.io.UnsupportedEncodingException;\n"
                         + "import java.net.URL;\n"
-                        + "import java.net.URLConnection;\n"
+                        + "import org.netbeans.geekout.demo.MethodConnection;\n"
                         + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
                         + "\n"
-                        + "@URLProtocolRegistration(protocol=\"" + p + "\")\n"
-                        + "public class " + clsName + " extends URLConnection {\n"
-                        + "    private final InputStream is;\n"
-                        + "\n"
-                        + "    public " + clsName + "(URL url) throws Exception {\n"
-                        + "        super(url);\n"
-                        + "        is = " + binaryName + "." + methodName + "(url);\n"
-                        + "    }\n"
-                        + "\n"
-                        + "    @Override\n"
-                        + "    public void connect() throws IOException {\n"
+                        + "@URLProtocolRegistration(protocol=\"" + p + "\", cacheable=" + upr.cacheable() 
+                        + ", position=" + upr.position() + ", contentType=" + literal(upr.contentType())
+                        + ", encoding=" + literal(upr.encoding()) + ", fixedLength=" + upr.fixedLength() + "L)\n"
+                        + "public class " + clsName + " extends MethodConnection {\n"
+                        + "    public " + clsName + "(URL url) {\n"
+                        + "        super(url, " + literal(upr.charset()) + ", " + literal(upr.contentType()) + ", " 
+                        + literal(upr.encoding()) + ", " + upr.fixedLength() + "L);\n"
                         + "    }\n"
                         + "\n"
                         + "    @Override\n"
-                        + "    public InputStream getInputStream() throws IOException {\n"
-                        + "        return is;\n"
+                        + "    protected Object open() throws IOException {\n"
+                        + body
                         + "    }\n"
+                        + (output ? 
+                              "\n"
+                            + "    @Override\n"
+                            + "    protected boolean isOutputSupported() {\n"
+                            + "        return true;\n"
+                            + "    }\n" : ""
+                        )
                         + "}\n"
                         + "";
                 w.append(code);
@@ -23,13 +23,60 @@
  */
 package org.netbeans.geekout.demo;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.ProtocolException;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.net.UnknownServiceException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import javax.tools.ToolProvider;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.netbeans.geekout.demo.impl.GeekciaoConnection;
+import org.netbeans.geekout.demo.impl.Geeks;
+import org.netbeans.geekout.demo.processor.URLProtocolRegistrationProcessor;
 import org.openide.util.test.AnnotationProcessorTestUtils;
 import static org.testng.Assert.*;
+import org.testng.SkipException;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
@@ -66,6 +113,1353 @@ public class URLsNGTest {
         String res = readFully(is);
         assertEquals(res, "Ciao Jarda!", "Greeting is OK");
     }
+    @Test
+    public void testGeekAhojProtocol() throws Exception {
+        URL u = new URL("geekahoj://Jarda");
+        InputStream is = u.openStream();
+        String res = readFully(is);
+        assertEquals(res, "Ahoj Jarda!", "Greeting is OK");
+    }
+    
+    @Test
+    public void testMethodIsCalledLazilyAndOnce() throws Exception {
+        int before = lazyCalls;
+        URLConnection c = new URL("geeklazy://Jarda").openConnection();
+        assertEquals(lazyCalls, before, "Opening the connection does not call the method");
+        c.connect();
+        assertEquals(lazyCalls, before + 1, "Connect calls the method");
+        assertEquals(readFully(c.getInputStream()), "Lazy Jarda!", "Greeting is OK");
+        assertEquals(lazyCalls, before + 1, "The method is called just once");
+    }
+    
+    private static int lazyCalls;
+    
+    @URLProtocolRegistration(protocol="geeklazy")
+    public static InputStream lazy(URL url) {
+        lazyCalls++;
+        return new ByteArrayInputStream(("Lazy " + url.getHost() + "!").getBytes());
+    }
+    
+    @URLProtocolRegistration(protocol="geekbuffer")
+    public static ByteBuffer buffer(URL url) {
+        return ByteBuffer.wrap(("Buffer " + url.getHost() + "!").getBytes());
+    }
+    
+    @URLProtocolRegistration(protocol="geekchannel")
+    public static ReadableByteChannel channel(URL url) {
+        return Channels.newChannel(new ByteArrayInputStream(("Channel " + url.getHost() + "!").getBytes()));
+    }
+    
+    private static File file;
+    
+    @URLProtocolRegistration(protocol="geekfile")
+    public static FileChannel file(URL url) throws IOException {
+        return FileChannel.open(file.toPath());
+    }
+    
+    @Test
+    public void testByteBufferMethod() throws Exception {
+        URL u = new URL("geekbuffer://Jarda");
+        assertEquals(readFully(u.openStream()), "Buffer Jarda!", "Readable as stream");
+        
+        MethodConnection c = (MethodConnection) u.openConnection();
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        ReadableByteChannel ch = c.getChannel();
+        while (ch.read(dst) != -1) {
+        }
+        dst.flip();
+        assertEquals(new String(dst.array(), 0, dst.limit()), "Buffer Jarda!", "Readable as channel");
+    }
+    
+    @Test
+    public void testChannelMethod() throws Exception {
+        URL u = new URL("geekchannel://Jarda");
+        assertEquals(readFully(u.openStream()), "Channel Jarda!", "Readable as stream");
+    }
+    
+    @Test
+    public void testFileChannelIsReturnedAsIs() throws Exception {
+        file = File.createTempFile("geek", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "File content".getBytes());
+        
+        MethodConnection c = (MethodConnection) new URL("geekfile://Jarda").openConnection();
+        ReadableByteChannel ch = c.getChannel();
+        assertTrue(ch instanceof FileChannel, "FileChannel is available for transferTo: " + ch);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        FileChannel fc = (FileChannel) ch;
+        fc.transferTo(0, fc.size(), Channels.newChannel(os));
+        fc.close();
+        assertEquals(os.toString(), "File content");
+    }
+    
+    @URLProtocolRegistration(protocol="geekbytes")
+    public static byte[] bytes(URL url) {
+        return ("Bytes " + url.getHost() + "!").getBytes();
+    }
+    
+    @URLProtocolRegistration(protocol="geektext", charset="UTF-16BE")
+    public static CharSequence text(URL url) {
+        return new StringBuilder("Text ").append(url.getHost()).append('!');
+    }
+    
+    @Test
+    public void testByteArrayMethod() throws Exception {
+        MethodConnection c = (MethodConnection) new URL("geekbytes://Jarda").openConnection();
+        assertEquals(c.getContentLengthLong(), 12, "Length known upfront");
+        assertNull(c.getContentType(), "Type of bytes is unknown");
+        assertEquals(new String(c.readAllBytes()), "Bytes Jarda!");
+        assertEquals(readFully(c.getInputStream()), "Bytes Jarda!", "Readable again");
+    }
+    
+    @Test
+    public void testTextMethodUsesCharset() throws Exception {
+        MethodConnection c = (MethodConnection) new URL("geektext://Jarda").openConnection();
+        assertEquals(c.getContentLength(), 22, "Two bytes per char");
+        assertEquals(c.getContentType(), "text/plain; charset=UTF-16BE");
+        assertEquals(new String(c.readAllBytes(), "UTF-16BE"), "Text Jarda!");
+    }
+    
+    private static int metaCalls;
+    
+    @URLProtocolRegistration(protocol="geekmeta", contentType="application/json", encoding="identity", fixedLength=2)
+    public static String meta(URL url) {
+        metaCalls++;
+        return "{}";
+    }
+    
+    @Test
+    public void testDeclaredMetadataDoesNotCallMethod() throws Exception {
+        int before = metaCalls;
+        URLConnection c = new URL("geekmeta://Jarda").openConnection();
+        assertEquals(c.getContentType(), "application/json");
+        assertEquals(c.getContentEncoding(), "identity");
+        assertEquals(c.getContentLengthLong(), 2);
+        assertEquals(c.getHeaderField("Content-Type"), "application/json");
+        assertEquals(metaCalls, before, "Method not called yet");
+        assertEquals(readFully(c.getInputStream()), "{}");
+        assertEquals(metaCalls, before + 1);
+    }
+    
+    @URLProtocolRegistration(protocol="geekmetacached", cacheable=true, contentType="application/json", encoding="identity", fixedLength=2)
+    public static String metaCached(URL url) {
+        metaCalls++;
+        return "{}";
+    }
+    
+    @Test
+    public void testDeclaredMetadataOfCacheableDoesNotCallMethod() throws Exception {
+        int before = metaCalls;
+        URLConnection c = new URL("geekmetacached://Jarda").openConnection();
+        assertEquals(c.getContentType(), "application/json");
+        assertEquals(c.getContentEncoding(), "identity");
+        assertEquals(c.getContentLengthLong(), 2);
+        assertEquals(c.getHeaderField("Content-Length"), "2");
+        assertEquals(metaCalls, before, "Method not called yet");
+        assertEquals(readFully(c.getInputStream()), "{}");
+        assertEquals(metaCalls, before + 1);
+    }
+    
+    @Test
+    public void testDeclaredMetadataOfConnection() throws Exception {
+        URLConnection c = new URL("geekciao://Jarda").openConnection();
+        assertTrue(c instanceof GeekciaoConnection, "Still the registered connection: " + c);
+        assertEquals(c.getContentType(), "text/plain; charset=UTF-8");
+        assertNull(c.getContentEncoding(), "No encoding declared");
+        assertEquals(readFully(c.getInputStream()), "Ciao Jarda!");
+    }
+    
+    private static CountDownLatch uploadReady = new CountDownLatch(0);
+    
+    @URLProtocolRegistration(protocol="geekupload")
+    public static String upload(URL url, InputStream data) throws IOException, InterruptedException {
+        uploadReady.await();
+        long sum = 0;
+        byte[] arr = new byte[1000];
+        for (;;) {
+            int len = data.read(arr);
+            if (len == -1) {
+                return "Got " + sum + " bytes for " + url.getHost();
+            }
+            sum += len;
+        }
+    }
+    
+    @Test
+    public void testUploadInChunks() throws Exception {
+        MethodConnection c = (MethodConnection) new URL("geekupload://Jarda").openConnection();
+        c.setDoOutput(true);
+        c.setChunkedStreamingMode(4096);
+        OutputStream os = c.getOutputStream();
+        byte[] arr = new byte[1000];
+        for (int i = 0; i < 1000; i++) {
+            os.write(arr);
+        }
+        os.close();
+        assertEquals(readFully(c.getInputStream()), "Got 1000000 bytes for Jarda");
+    }
+    
+    @Test
+    public void testUploadBlocksWhenMethodDoesNotRead() throws Exception {
+        uploadReady = new CountDownLatch(1);
+        final MethodConnection c = (MethodConnection) new URL("geekupload://Slow").openConnection();
+        c.setDoOutput(true);
+        c.setChunkedStreamingMode(100);
+        final OutputStream os = c.getOutputStream();
+        final AtomicInteger written = new AtomicInteger();
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        Future<?> writer = exec.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                for (int i = 0; i < 100; i++) {
+                    os.write(new byte[100]);
+                    written.incrementAndGet();
+                }
+                os.close();
+                return null;
+            }
+        });
+        while (written.get() < ChunkedPipe.CHUNKS) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertEquals(written.get(), ChunkedPipe.CHUNKS, "Writer waits once the pipe is full");
+        uploadReady.countDown();
+        writer.get();
+        exec.shutdown();
+        assertEquals(readFully(c.getInputStream()), "Got 10000 bytes for Slow");
+    }
+    
+    @Test
+    public void testFixedLengthUpload() throws Exception {
+        MethodConnection c = (MethodConnection) new URL("geekupload://Jarda").openConnection();
+        c.setDoOutput(true);
+        c.setFixedLengthStreamingMode(10);
+        OutputStream os = c.getOutputStream();
+        os.write(new byte[5]);
+        try {
+            os.write(new byte[6]);
+            fail("Too much data");
+        } catch (IOException ex) {
+            // OK
+        }
+        try {
+            os.close();
+            fail("Too little data");
+        } catch (IOException ex) {
+            // OK
+        }
+    }
+    
+    @Test
+    public void testOutputNeedsDoOutputAndInputStreamParameter() throws Exception {
+        try {
+            new URL("geekupload://Jarda").openConnection().getOutputStream();
+            fail("Needs setDoOutput(true)");
+        } catch (ProtocolException ex) {
+            // OK
+        }
+        URLConnection c = new URL("geekbytes://Jarda").openConnection();
+        c.setDoOutput(true);
+        try {
+            c.getOutputStream();
+            fail("Method does not take InputStream");
+        } catch (UnknownServiceException ex) {
+            // OK
+        }
+    }
+    
+    private static Path mapped;
+    
+    @URLProtocolRegistration(protocol="geekmapped")
+    public static Path mapped(URL url) {
+        return mapped;
+    }
+    
+    @Test
+    public void testPathIsSharedMapping() throws Exception {
+        mapped = File.createTempFile("geek", ".txt").toPath();
+        mapped.toFile().deleteOnExit();
+        Files.write(mapped, "Mapped content".getBytes());
+        
+        URL u = new URL("geekmapped://Jarda");
+        InputStream is = u.openStream();
+        assertTrue(MappedFile.isMapped(mapped), "Mapped while the stream is open");
+        
+        MethodConnection c = (MethodConnection) u.openConnection();
+        ReadableByteChannel ch = c.getChannel();
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        while (ch.read(dst) != -1) {
+        }
+        dst.flip();
+        assertEquals(new String(dst.array(), 0, dst.limit()), "Mapped content", "Readable as channel");
+        ch.close();
+        assertTrue(MappedFile.isMapped(mapped), "Still mapped");
+        
+        MethodConnection all = (MethodConnection) u.openConnection();
+        assertEquals(all.getContentLengthLong(), "Mapped content".length(), "Length of the mapping");
+        assertEquals(new String(all.readAllBytes()), "Mapped content", "Copied from the mapping");
+        assertTrue(MappedFile.isMapped(mapped), "Copying keeps the mapping");
+        
+        assertEquals(readFully(is), "Mapped content", "Readable as stream");
+        is.close();
+        assertTrue(MappedFile.isMapped(mapped), "Kept after last reader is closed");
+        MappedFile first = MappedFile.get(mapped);
+        assertEquals(readFully(u.openStream()), "Mapped content", "Opened again");
+        assertSame(MappedFile.get(mapped), first, "Second open reuses the mapping");
+        
+        Files.write(mapped, "Changed and longer".getBytes());
+        assertEquals(readFully(u.openStream()), "Changed and longer", "Change of the file detected");
+        assertNotSame(MappedFile.get(mapped), first, "Mapped again");
+    }
+    
+    @Test
+    public void testMappingsAreBounded() throws Exception {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i <= MappedFile.MAX_MAPPED; i++) {
+            Path p = File.createTempFile("geekbound", ".txt").toPath();
+            p.toFile().deleteOnExit();
+            Files.write(p, ("File " + i).getBytes());
+            MappedFile.get(p);
+            files.add(p);
+        }
+        assertFalse(MappedFile.isMapped(files.get(0)), "Least recently used mapping dropped");
+        assertTrue(MappedFile.isMapped(files.get(MappedFile.MAX_MAPPED)), "Recent one kept");
+    }
+    
+    private static int cachedCalls;
+    
+    @URLProtocolRegistration(protocol="geekcached", cacheable=true)
+    public static InputStream cached(URL url) {
+        cachedCalls++;
+        return new ByteArrayInputStream(("Cached " + url.getHost() + "!").getBytes());
+    }
+    
+    @Test
+    public void testCacheableContentIsReadOnce() throws Exception {
+        ProtocolStatistics before = ProtocolMetrics.of("geekcached").snapshot();
+        int calls = cachedCalls;
+        URL u = new URL("geekcached://Jarda");
+        
+        assertEquals(readFully(u.openStream()), "Cached Jarda!");
+        assertEquals(readFully(u.openStream()), "Cached Jarda!");
+        assertEquals(cachedCalls, calls + 1, "Second read served from cache");
+        assertEquals(u.openConnection().getContentLength(), 13, "Length known from cache");
+        
+        assertEquals(readFully(new URL("geekcached://Ondra").openStream()), "Cached Ondra!");
+        assertEquals(cachedCalls, calls + 2, "Different URL is not cached yet");
+        
+        URLs.invalidate("geekcached");
+        assertEquals(readFully(u.openStream()), "Cached Jarda!");
+        assertEquals(cachedCalls, calls + 3, "Invalidation discards the content");
+        
+        ProtocolStatistics after = ProtocolMetrics.of("geekcached").snapshot();
+        assertEquals(after.getCacheHits() - before.getCacheHits(), 2);
+        assertEquals(after.getCacheMisses() - before.getCacheMisses(), 3);
+    }
+    
+    @Test
+    public void testMissIsFilledIntoTheConnection() throws Exception {
+        ProtocolStatistics before = ProtocolMetrics.of("geekcached").snapshot();
+        int calls = cachedCalls;
+        URLConnection c = new URL("geekcached://Filled").openConnection();
+        
+        assertEquals(readFully(c.getInputStream()), "Cached Filled!");
+        assertEquals(readFully(c.getInputStream()), "Cached Filled!", "Served from the filled entry");
+        assertEquals(cachedCalls, calls + 1, "Method called once");
+        assertEquals(c.getHeaderField("content-length"), "14");
+        assertNull(c.getContentEncoding());
+        
+        ProtocolStatistics after = ProtocolMetrics.of("geekcached").snapshot();
+        assertEquals(after.getBytesRead() - before.getBytesRead(), 28, "Each read counted once");
+    }
+    
+    @Test
+    public void testCachedContentExpires() throws Exception {
+        URL u = new URL("geekcached://Expiring");
+        int calls = cachedCalls;
+        URLs.configureCache(ContentCache.DEFAULT_MAX_BYTES, 1, TimeUnit.NANOSECONDS);
+        try {
+            assertEquals(readFully(u.openStream()), "Cached Expiring!");
+            Thread.sleep(1);
+            assertEquals(readFully(u.openStream()), "Cached Expiring!");
+            assertEquals(cachedCalls, calls + 2, "Content expired");
+        } finally {
+            URLs.configureCache(ContentCache.DEFAULT_MAX_BYTES, 0, TimeUnit.SECONDS);
+        }
+    }
+    
+    @Test
+    public void testCacheIsBoundedBySize() {
+        ContentCache cache = new ContentCache(1600, 0);
+        for (int i = 0; i < 100; i++) {
+            cache.put("geek://" + i, new byte[60], null, null);
+            assertTrue(cache.size() <= 1600, "Limit kept: " + cache.size());
+        }
+        assertNotNull(cache.get("geek://99"), "Recent entry stays");
+        
+        cache.put("geek://big", new byte[200], null, null);
+        assertNull(cache.get("geek://big"), "Too big to be cached");
+    }
+    
+    @Test
+    public void testRegisterAtRuntime() throws Exception {
+        GlobalProxyFactory f = URLs.getFactory();
+        URLStreamHandler ciao = f.createURLStreamHandler("geekciao");
+        assertNull(f.createURLStreamHandler("geekplugin"), "Nothing registered yet");
+        
+        GenericHandler h = new GenericHandler(GeekciaoConnection.class);
+        URLs.register("geekplugin", h);
+        assertSame(f.createURLStreamHandler("geekplugin"), h, "Registered handler found");
+        assertEquals(readFully(new URL("geekplugin://Jarda").openStream()), "Ciao Jarda!");
+        assertEquals(URLs.getStatistics().get("geekplugin").getSource(), ProtocolStatistics.Source.REGISTERED);
+        assertSame(f.createURLStreamHandler("geekciao"), ciao, "Other protocols remain cached");
+        
+        URLs.unregister("geekplugin");
+        assertNull(f.createURLStreamHandler("geekplugin"), "Unregistered");
+    }
+    
+    @Test
+    public void testRegisteredFactoryOverridesClasspath() throws Exception {
+        GlobalProxyFactory f = URLs.getFactory();
+        URLStreamHandler ahoj = f.createURLStreamHandler("geekahoj");
+        final GenericHandler h = new GenericHandler(GeekciaoConnection.class);
+        URLs.register(new URLStreamHandlerFactory() {
+            @Override
+            public URLStreamHandler createURLStreamHandler(String protocol) {
+                return h;
+            }
+        }, "geekahoj");
+        try {
+            assertSame(f.createURLStreamHandler("geekahoj"), h, "Registration wins");
+        } finally {
+            URLs.unregister("geekahoj");
+        }
+        assertEquals(f.createURLStreamHandler("geekahoj").getClass(), ahoj.getClass(), "Classpath registration again");
+    }
+    
+    private static File compileConnection(String className, String protocol, int position) throws IOException {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        AnnotationProcessorTestUtils.makeSource(dir, className, 
+            "import java.net.URL;\n"
+            + "import java.net.URLConnection;\n"
+            + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+            + "@URLProtocolRegistration(protocol=\"" + protocol + "\", position=" + position + ")\n"
+            + "public class " + simpleName + " extends URLConnection {\n"
+            + "  public " + simpleName + "(URL u) { super(u); }\n"
+            + "  public void connect() {}\n"
+            + "}\n"
+        );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        return dir;
+    }
+    
+    @Test
+    public void testRegistriesOrderedByPositionAcrossJARs() throws Exception {
+        File a = compileConnection("a.Low", "geekdup", 100);
+        File b = compileConnection("b.High", "geekdup", 1);
+        
+        GlobalProxyFactory f = URLs.getFactory();
+        ClassLoader app = new URLClassLoader(
+            new URL[] { a.toURI().toURL(), b.toURI().toURL() }, URLsNGTest.class.getClassLoader()
+        );
+        ClassLoader prev = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(app);
+        try {
+            URLStreamHandler h = f.createURLStreamHandler("geekdup");
+            assertEquals(h.getClass().getName(), "b.High$handler", "Lower position wins even in later JAR");
+            assertEquals(URLs.getStatistics().get("geekdup").getSource(), ProtocolStatistics.Source.REGISTRY);
+        } finally {
+            Thread.currentThread().setContextClassLoader(prev);
+        }
+    }
+    
+    @Test
+    public void testContextClassLoaderHasOwnTable() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        File index = new File(dir, GlobalProxyFactory.INDEX);
+        index.getParentFile().mkdirs();
+        Files.write(index.toPath(), ("geekisolated connection " + GeekciaoConnection.class.getName() + "\n").getBytes());
+        
+        GlobalProxyFactory f = URLs.getFactory();
+        ClassLoader app = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader());
+        ClassLoader prev = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(app);
+        try {
+            URLStreamHandler h = f.createURLStreamHandler("geekisolated");
+            assertNotNull(h, "Visible to the application");
+            assertSame(f.createURLStreamHandler("geekisolated"), h, "Cached per loader");
+            assertNotNull(f.createURLStreamHandler("geekciao"), "Parent registrations visible too");
+            
+            ClassLoader other = new URLClassLoader(new URL[0], URLsNGTest.class.getClassLoader());
+            Thread.currentThread().setContextClassLoader(other);
+            assertNull(f.createURLStreamHandler("geekisolated"), "Recently used table not shared with other loader");
+            Thread.currentThread().setContextClassLoader(app);
+            assertSame(f.createURLStreamHandler("geekisolated"), h, "Table found again");
+        } finally {
+            Thread.currentThread().setContextClassLoader(prev);
+        }
+        assertNull(f.createURLStreamHandler("geekisolated"), "Not visible outside of the application");
+    }
+    
+    @Test
+    public void testJDKProtocolsAreBypassed() throws Exception {
+        GlobalProxyFactory f = URLs.getFactory();
+        assertNull(f.createURLStreamHandler("http"), "Left to the JDK");
+        assertNull(URLs.getStatistics().get("http"), "Not even searched for");
+        
+        URLs.configureBypass(Arrays.asList("geekciao", "geekbypassed"), false);
+        try {
+            assertNotNull(f.createURLStreamHandler("geekciao"), "Listed in the index, wins over the bypass");
+            assertNull(f.createURLStreamHandler("geekbypassed"), "Unlisted protocol is bypassed");
+            assertNull(URLs.getStatistics().get("geekbypassed"), "Not searched for");
+            assertNull(f.createURLStreamHandler("http"), "Nobody handles http");
+            assertTrue(f.isMiss("http"), "But it was searched for");
+            assertNull(URLs.getStatistics().get("http"), "Misses are not counted");
+        } finally {
+            URLs.configureBypass(null, false);
+        }
+        assertNotNull(f.createURLStreamHandler("geekciao"), "Found again");
+    }
+    
+    /** Installs the factory in a fresh JVM and opens URLs before anything
+     * has been read from the classpath.
+     */
+    public static final class ColdStart {
+        public static void main(String[] args) throws Exception {
+            URLs.initialize();
+            URL jar = new URL("jar:file:/x.jar!/a");
+            System.out.println(jar.getProtocol() + " " + readFully(new URL("geekciao://Cold").openStream()));
+        }
+    }
+    
+    @Test
+    public void testColdStartInFreshJVM() throws Exception {
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        Process p = new ProcessBuilder(
+            java.getPath(), "-cp", System.getProperty("java.class.path"), ColdStart.class.getName()
+        ).redirectErrorStream(true).start();
+        String out = readFully(p.getInputStream());
+        assertTrue(p.waitFor(60, TimeUnit.SECONDS), "Finished:\n" + out);
+        assertEquals(p.exitValue(), 0, "Succeeded:\n" + out);
+        assertEquals(out.trim(), "jar Ciao Cold!");
+    }
+
+    public static final class NoFlightRecorder {
+        public static void main(String[] args) throws Exception {
+            URLs.initialize();
+            try (InputStream is = new URL("geekciao://Recorder").openStream()) {
+                byte[] arr = new byte[4096];
+                int len = is.read(arr);
+                System.out.println(Events.AVAILABLE + " " + new String(arr, 0, len, "UTF-8"));
+            }
+        }
+    }
+
+    @Test
+    public void testWorksWithoutFlightRecorder() throws Exception {
+        if (System.getProperty("java.specification.version").startsWith("1.")) {
+            throw new SkipException("No modules to limit");
+        }
+        File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+        Process p = new ProcessBuilder(
+            java.getPath(), "--limit-modules", "java.se",
+            "-cp", System.getProperty("java.class.path"), NoFlightRecorder.class.getName()
+        ).redirectErrorStream(true).start();
+        String out = readFully(p.getInputStream());
+        assertTrue(p.waitFor(60, TimeUnit.SECONDS), "Finished:\n" + out);
+        assertEquals(p.exitValue(), 0, "Succeeded:\n" + out);
+        assertEquals(out.trim(), "false Ciao Recorder!");
+    }
+
+    @Test
+    public void testIndexedProtocolWinsOverDefaultBypass() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        File index = new File(dir, GlobalProxyFactory.INDEX);
+        index.getParentFile().mkdirs();
+        Files.write(index.toPath(), ("ftp connection " + GeekciaoConnection.class.getName() + "\n").getBytes());
+        
+        GlobalProxyFactory f = URLs.getFactory();
+        ClassLoader app = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader());
+        ClassLoader prev = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(app);
+        try {
+            URLStreamHandler h = f.createURLStreamHandler("ftp");
+            assertNotNull(h, "Registered in the index");
+            assertEquals(((RegisteredHandler) h).implementation(), GeekciaoConnection.class.getName());
+        } finally {
+            Thread.currentThread().setContextClassLoader(prev);
+        }
+        assertNull(f.createURLStreamHandler("ftp"), "Left to the JDK elsewhere");
+    }
+    
+    @Test
+    public void testWarnsAboutJDKProtocol() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Web", String.format(FACTORY_SOURCE, "http", "Web"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        assertTrue(os.toString().contains("Protocol http is handled by the JDK"), "Warned:\n" + os);
+    }
+    
+    @Test
+    public void testIndexOnlyIgnoresUnlistedProtocols() throws Exception {
+        GlobalProxyFactory f = URLs.getFactory();
+        URLs.configureBypass(null, true);
+        try {
+            assertNotNull(f.createURLStreamHandler("geekciao"), "Listed in the index");
+            assertNull(f.createURLStreamHandler("geekunlisted"), "Not searched for");
+            assertNull(URLs.getStatistics().get("geekunlisted"), "No resolution happened");
+            
+            URLStreamHandler h = new GenericHandler(GeekciaoConnection.class);
+            URLs.register("geekunlisted", h);
+            try {
+                assertSame(f.createURLStreamHandler("geekunlisted"), h, "Runtime registration honored");
+            } finally {
+                URLs.unregister("geekunlisted");
+            }
+        } finally {
+            URLs.configureBypass(null, false);
+        }
+    }
+    
+    @Test
+    public void testLowerPositionWinsAndOthersAreNotLoaded() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        File index = new File(dir, GlobalProxyFactory.INDEX);
+        index.getParentFile().mkdirs();
+        Files.write(index.toPath(), (
+            "geekranked connection test.NeverLoaded\n"
+            + "geekranked connection " + GeekciaoConnection.class.getName() + " position=10\n"
+        ).getBytes());
+        
+        final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+        ClassLoader app = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                requested.add(name);
+                return super.loadClass(name, resolve);
+            }
+        };
+        ClassLoader prev = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(app);
+        try {
+            assertNotNull(URLs.getFactory().createURLStreamHandler("geekranked"), "Positioned registration found");
+        } finally {
+            Thread.currentThread().setContextClassLoader(prev);
+        }
+        assertFalse(requested.contains("test.NeverLoaded"), "Unpositioned candidate not loaded: " + requested);
+    }
+    
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        File dump = File.createTempFile("urls", ".jfr");
+        try (Recording r = new Recording()) {
+            r.enable("org.netbeans.geekout.demo.Resolution");
+            r.enable("org.netbeans.geekout.demo.Open");
+            r.enable("org.netbeans.geekout.demo.Connect");
+            r.enable("org.netbeans.geekout.demo.Read");
+            r.start();
+            URLs.invalidate("geekbuffer");
+            URLs.getFactory().createURLStreamHandler("geekbuffer");
+            try (InputStream is = new URL("geekbuffer://Recorded").openStream()) {
+                assertEquals(readFully(is), "Buffer Recorded!");
+            }
+            r.stop();
+            r.dump(dump.toPath());
+        }
+        List<String> seen = new ArrayList<>();
+        for (RecordedEvent e : RecordingFile.readAllEvents(dump.toPath())) {
+            String name = e.getEventType().getName();
+            if (!name.startsWith("org.netbeans.geekout.demo.") || !"geekbuffer".equals(e.getString("protocol"))) {
+                continue;
+            }
+            seen.add(name.substring(26));
+            if (name.endsWith("Resolution")) {
+                assertEquals(e.getString("source"), "REGISTRY");
+            }
+            if (name.endsWith("Read")) {
+                assertEquals(e.getLong("bytes"), "Buffer Recorded!".length());
+                assertTrue(e.getLong("firstByte") >= 0, "First byte measured");
+            }
+        }
+        dump.delete();
+        assertTrue(seen.containsAll(Arrays.asList("Resolution", "Open", "Connect", "Read")), "All events recorded: " + seen);
+    }
+    
+    @Test
+    public void testOpenAsync() throws Exception {
+        CompletableFuture<InputStream> f = URLs.openAsync(new URL("geekbuffer://Async"));
+        assertEquals(readFully(f.get()), "Buffer Async!");
+    }
+    
+    @Test
+    public void testOpenAsyncPropagatesException() throws Exception {
+        URL u = new URL(null, "geekfail://Async", new GenericHandler(FailingConnection.class));
+        try {
+            URLs.openAsync(u).get();
+            fail("Should throw an exception");
+        } catch (ExecutionException ex) {
+            assertEquals(ex.getCause().getClass(), IOException.class, "Original exception");
+            assertEquals(ex.getCause().getMessage(), "Cannot connect to Async");
+        }
+    }
+    
+    @Test
+    public void testOpenAllKeepsOrderAndLimit() throws Exception {
+        List<URL> urls = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            urls.add(new URL((i % 2 == 0 ? "geekbuffer" : "geeklazy") + "://Host" + i));
+        }
+        final ExecutorService exec = Executors.newCachedThreadPool();
+        final AtomicInteger workers = new AtomicInteger();
+        Executor counting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                workers.incrementAndGet();
+                exec.execute(command);
+            }
+        };
+        try {
+            List<CompletableFuture<InputStream>> res = URLs.openAll(urls, 3, counting);
+            assertEquals(res.size(), 20);
+            for (int i = 0; i < 20; i++) {
+                String prefix = i % 2 == 0 ? "Buffer" : "Lazy";
+                assertEquals(readFully(res.get(i).get()), prefix + " Host" + i + "!", "In order");
+            }
+            assertEquals(workers.get(), 3, "Only three workers used");
+        } finally {
+            exec.shutdown();
+        }
+    }
+    
+    @Test
+    public void testOpenAllOpensInGivenOrder() throws Exception {
+        List<URL> urls = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            urls.add(new URL((i % 2 == 0 ? "geekbuffer" : "geeklazy") + "://Order" + i));
+        }
+        final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Runnable> queued = new ArrayList<>();
+        List<CompletableFuture<InputStream>> res = URLs.openAll(urls, 1, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        for (int i = 0; i < res.size(); i++) {
+            final int at = i;
+            res.get(i).thenRun(() -> completed.add(at));
+        }
+        assertEquals(queued.size(), 1, "One worker");
+        queued.get(0).run();
+        assertEquals(completed, Arrays.asList(0, 1, 2, 3, 4, 5), "Not grouped by protocol");
+    }
+    
+    private static final CountDownLatch slowStarted = new CountDownLatch(1);
+    private static final CountDownLatch slowInterrupted = new CountDownLatch(1);
+    
+    @URLProtocolRegistration(protocol="geekslow")
+    public static InputStream slow(URL url) throws IOException {
+        slowStarted.countDown();
+        try {
+            Thread.sleep(60000);
+        } catch (InterruptedException ex) {
+            slowInterrupted.countDown();
+            throw new InterruptedIOException();
+        }
+        return new ByteArrayInputStream(new byte[0]);
+    }
+    
+    @Test
+    public void testCancelOpenAsyncInterrupts() throws Exception {
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<InputStream> f = URLs.openAsync(new URL("geekslow://Jarda"), exec);
+            assertTrue(slowStarted.await(10, TimeUnit.SECONDS), "Method called");
+            assertTrue(f.cancel(true), "Cancelled");
+            assertTrue(slowInterrupted.await(10, TimeUnit.SECONDS), "Opening thread interrupted");
+            assertTrue(f.isCancelled());
+        } finally {
+            exec.shutdown();
+        }
+    }
+    
+    private static volatile CompletableFuture<ByteBuffer> promise;
+    
+    @URLProtocolRegistration(protocol="geekpromise")
+    public static CompletionStage<ByteBuffer> promise(URL url) {
+        return promise;
+    }
+    
+    @Test
+    public void testCompletionStageReadBlocking() throws Exception {
+        promise = CompletableFuture.completedFuture(ByteBuffer.wrap("Promised".getBytes("UTF-8")));
+        assertEquals(readFully(new URL("geekpromise://Blocking").openStream()), "Promised");
+    }
+    
+    @Test
+    public void testCompletionStageConsumedWithoutBlocking() throws Exception {
+        promise = new CompletableFuture<>();
+        URLConnection c = new URL("geekpromise://Async").openConnection();
+        CompletableFuture<?> f = (CompletableFuture<?>) c.getContent(new Class[] { CompletionStage.class });
+        assertFalse(f.isDone(), "Not completed yet");
+        promise.complete(ByteBuffer.wrap("Later".getBytes("UTF-8")));
+        assertEquals(readFully((InputStream) f.get()), "Later");
+    }
+    
+    public interface FakePublisher {
+        void subscribe(FakeSubscriber s);
+    }
+    
+    public interface FakeSubscriber {
+        void onSubscribe(FakeSubscription s);
+        void onNext(Object item);
+        void onError(Throwable t);
+        void onComplete();
+    }
+    
+    public interface FakeSubscription {
+        void request(long n);
+        void cancel();
+    }
+    
+    @Test
+    public void testPublisherStreamRequestsAndCancels() throws Exception {
+        final AtomicLong requested = new AtomicLong();
+        final AtomicInteger cancelled = new AtomicInteger();
+        final FakeSubscriber[] subscriber = { null };
+        FakePublisher publisher = new FakePublisher() {
+            @Override
+            public void subscribe(FakeSubscriber s) {
+                subscriber[0] = s;
+                s.onSubscribe(new FakeSubscription() {
+                    @Override
+                    public void request(long n) {
+                        requested.addAndGet(n);
+                    }
+
+                    @Override
+                    public void cancel() {
+                        cancelled.incrementAndGet();
+                    }
+                });
+            }
+        };
+        PublisherInputStream.Api api = new PublisherInputStream.Api(
+            FakePublisher.class, FakeSubscriber.class, FakeSubscription.class
+        );
+        InputStream is = PublisherInputStream.subscribe(api, publisher, ProtocolMetrics.of("geekfake"));
+        assertEquals(requested.get(), ChunkedPipe.CHUNKS, "Initial demand");
+        
+        subscriber[0].onNext(ByteBuffer.wrap("ab".getBytes()));
+        subscriber[0].onNext(ByteBuffer.allocate(0));
+        subscriber[0].onNext(ByteBuffer.wrap("c".getBytes()));
+        assertEquals(is.read(), 'a');
+        assertEquals(requested.get(), ChunkedPipe.CHUNKS + 1, "Consumed buffer replaced");
+        assertEquals(is.read(), 'b');
+        assertEquals(requested.get(), ChunkedPipe.CHUNKS + 1, "Buffer not consumed yet");
+        assertEquals(is.read(), 'c');
+        assertEquals(requested.get(), ChunkedPipe.CHUNKS + 3, "Empty buffer replaced too");
+        assertEquals(cancelled.get(), 0);
+        
+        is.close();
+        assertEquals(cancelled.get(), 1, "Cancelled on close");
+        is.close();
+        assertEquals(cancelled.get(), 1, "Only once");
+        
+        is = PublisherInputStream.subscribe(api, publisher, ProtocolMetrics.of("geekfake"));
+        subscriber[0].onNext(ByteBuffer.wrap("d".getBytes()));
+        subscriber[0].onComplete();
+        assertEquals(readFully(is), "d");
+        is.close();
+        assertEquals(cancelled.get(), 1, "Completed subscription is not cancelled");
+    }
+    
+    @Test
+    public void testPublisherAdaptedWithBackpressure() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Flowing", 
+            "import java.net.URL;\n"
+            + "import java.nio.ByteBuffer;\n"
+            + "import java.util.concurrent.Flow;\n"
+            + "import java.util.concurrent.atomic.AtomicLong;\n"
+            + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+            + "public class Flowing {\n"
+            + "  public static final AtomicLong REQUESTED = new AtomicLong();\n"
+            + "  @URLProtocolRegistration(protocol=\"flowing\")\n"
+            + "  public static Flow.Publisher<ByteBuffer> flow(URL u) {\n"
+            + "    return (s) -> s.onSubscribe(new Flow.Subscription() {\n"
+            + "      int sent;\n"
+            + "      public void request(long n) {\n"
+            + "        REQUESTED.addAndGet(n);\n"
+            + "        for (long i = 0; i < n && sent < 100; i++) {\n"
+            + "          s.onNext(ByteBuffer.wrap((sent++ % 10 + \"\").getBytes()));\n"
+            + "          if (sent == 100) s.onComplete();\n"
+            + "        }\n"
+            + "      }\n"
+            + "      public void cancel() { sent = 100; }\n"
+            + "    });\n"
+            + "  }\n"
+            + "}\n"
+        );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        boolean res = AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os);
+        Class<?> publisher;
+        try {
+            publisher = Class.forName("java.util.concurrent.Flow$Publisher");
+        } catch (ClassNotFoundException ex) {
+            throw new SkipException("Flow API needs JDK 9 or newer");
+        }
+        assertTrue(res, "compilation succeeds:\n" + os);
+        
+        ClassLoader l = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader());
+        URLStreamHandler h = (URLStreamHandler) l.loadClass("test.Flowing$url$flowing$handler").newInstance();
+        AtomicLong requested = (AtomicLong) l.loadClass("test.Flowing").getField("REQUESTED").get(null);
+        
+        URLConnection c = new URL(null, "flowing://Data", h).openConnection();
+        assertTrue(publisher.isInstance(c.getContent(new Class[] { publisher })), "Publisher exposed as is");
+        assertEquals(requested.get(), 0, "Nothing requested yet");
+        
+        InputStream is = c.getInputStream();
+        assertEquals(is.read(), '0');
+        assertTrue(requested.get() <= 17, "Only few buffers requested ahead: " + requested);
+        StringBuilder sb = new StringBuilder("0");
+        for (;;) {
+            int ch = is.read();
+            if (ch == -1) {
+                break;
+            }
+            sb.append((char) ch);
+        }
+        assertEquals(sb.length(), 100);
+        assertTrue(sb.toString().startsWith("0123456789012"), sb.toString());
+    }
+    
+    @Test
+    public void testMethodMustReturnStreamOrBuffer() throws IOException {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        String code = 
+            "import java.net.URL;\n"
+            + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+            + "public class WrongType {\n"
+            + "  @URLProtocolRegistration(protocol=\"xyz\")\n"
+            + "  public static Runnable xyz(URL url) { return null; }\n"
+            + "}\n";
+        AnnotationProcessorTestUtils.makeSource(dir, "test.WrongType", code);
+        
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        boolean res = AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os);
+        
+        assertFalse(res, "compilation has to fail");
+        String msg = os.toString();
+        if (!msg.contains("has to return InputStream")) {
+            fail("Message should complain about return type:\n" + msg);
+        }
+    }
+    
+    @Test
+    public void testConnectionsUseGeneratedHandler() throws Exception {
+        URLStreamHandler h = URLs.getFactory().createURLStreamHandler("geekciao");
+        assertEquals(h.getClass().getName(), GeekciaoConnection.class.getName() + "$handler", "Generated handler is used");
+        URLStreamHandler m = URLs.getFactory().createURLStreamHandler("geekahoj");
+        assertEquals(m.getClass().getName(), Geeks.class.getName() + "$url$geekahoj$handler", "Generated handler is used for methods");
+    }
+    
+    @Test
+    public void testGenericHandlerOpensConnection() throws Exception {
+        GenericHandler h = new GenericHandler(GeekciaoConnection.class);
+        URL u = new URL(null, "geekciao://Jarda", h);
+        assertEquals(readFully(u.openStream()), "Ciao Jarda!", "Greeting is OK");
+    }
+    
+    @Test
+    public void testGenericHandlerPropagatesIOException() throws Exception {
+        GenericHandler h = new GenericHandler(FailingConnection.class);
+        URL u = new URL(null, "geekfail://Jarda", h);
+        try {
+            u.openConnection();
+            fail("Should throw an exception");
+        } catch (IOException ex) {
+            assertEquals(ex.getMessage(), "Cannot connect to Jarda", "Original exception");
+        }
+    }
+    
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testGenericHandlerNeedsURLConstructor() {
+        new GenericHandler(NoURLConnection.class);
+    }
+    
+    @Test
+    public void testResetKeepsCountingLiveConnections() throws Exception {
+        URLConnection c = new URL("geekbuffer://Reset").openConnection();
+        URLs.resetStatistics();
+        assertEquals(readFully(c.getInputStream()), "Buffer Reset!");
+        ProtocolStatistics stats = URLs.getStatistics().get("geekbuffer");
+        assertNotNull(stats, "Still reported after reset");
+        assertEquals(stats.getBytesRead(), "Buffer Reset!".length(), "Counted since reset");
+        assertEquals(stats.getOpenCount(), 0, "Opened before reset");
+    }
+    
+    @Test
+    public void testStatisticsCountConnections() throws Exception {
+        URLs.invalidate("geekahoj");
+        URLs.getFactory().createURLStreamHandler("geekahoj");
+        ProtocolStatistics before = URLs.getStatistics().get("geekahoj");
+        assertNotNull(before, "Statistics for geekahoj: " + URLs.getStatistics());
+        assertEquals(before.getSource(), ProtocolStatistics.Source.REGISTRY, "Found in generated registry");
+        
+        assertEquals(readFully(new URL("geekahoj://Jarda").openStream()), "Ahoj Jarda!");
+        
+        ProtocolStatistics after = URLs.getStatistics().get("geekahoj");
+        assertEquals(after.getOpenCount(), before.getOpenCount() + 1, "One more connection");
+        assertEquals(after.getBytesRead(), before.getBytesRead() + "Ahoj Jarda!".length(), "Bytes counted");
+        assertEquals(after.getErrorCount(), before.getErrorCount(), "No errors");
+        
+        long sum = 0;
+        for (long b : after.getResolutionHistogram()) {
+            sum += b;
+        }
+        assertEquals(sum, after.getResolutionCount(), "Each resolution is in the histogram");
+        
+        URLs.getFactory().createURLStreamHandler("geekmissing");
+        assertNull(URLs.getStatistics().get("geekmissing"), "No statistics for protocols that never resolved");
+    }
+    
+    @Test
+    public void testMissesAreBounded() throws Exception {
+        GlobalProxyFactory f = URLs.getFactory();
+        for (int i = 0; i <= GlobalProxyFactory.MAX_MISSES; i++) {
+            assertNull(f.createURLStreamHandler("geekmiss" + i));
+        }
+        assertFalse(f.isMiss("geekmiss0"), "The eldest miss is forgotten");
+        assertTrue(f.isMiss("geekmiss" + GlobalProxyFactory.MAX_MISSES), "The latest miss is remembered");
+        assertNull(f.createURLStreamHandler("geekmiss0"), "Still a miss when asked again");
+        assertTrue(f.isMiss("geekmiss0"), "Remembered again");
+        
+        URLs.invalidate("geekmiss0");
+        assertFalse(f.isMiss("geekmiss0"), "Forgotten on invalidation");
+    }
+    
+    @Test
+    public void testStatisticsMXBean() throws Exception {
+        URLs.getFactory().createURLStreamHandler("geekhi");
+        Object attr = ManagementFactory.getPlatformMBeanServer().getAttribute(
+            new ObjectName(URLStatisticsMXBean.OBJECT_NAME), "Statistics"
+        );
+        assertTrue(attr instanceof TabularData, "Map is exposed as tabular data: " + attr);
+        TabularData data = (TabularData) attr;
+        CompositeData row = data.get(new Object[] { "geekhi" });
+        assertNotNull(row, "geekhi is present in " + data);
+        CompositeData stats = (CompositeData) row.get("value");
+        assertEquals(stats.get("protocol"), "geekhi");
+    }
+    
+    @Test
+    public void testPreloadFindsAllRegistrations() throws Exception {
+        GlobalProxyFactory f = new GlobalProxyFactory();
+        Set<String> found = f.preload(ForkJoinPool.commonPool());
+        assertTrue(found.containsAll(Arrays.asList("geekahoj", "geekciao", "geekhi", "geeklazy")), "All found: " + found);
+        
+        long resolutions = URLs.getStatistics().get("geekciao").getResolutionCount();
+        assertNotNull(f.createURLStreamHandler("geekciao"), "Handler is ready");
+        assertEquals(URLs.getStatistics().get("geekciao").getResolutionCount(), resolutions, "No new resolution needed");
+    }
+    
+    @Test
+    public void testHandlersAreCached() throws Exception {
+        GlobalProxyFactory f = URLs.getFactory();
+        URLStreamHandler h1 = f.createURLStreamHandler("geekhi");
+        assertNotNull(h1, "Handler found");
+        assertSame(f.createURLStreamHandler("geekhi"), h1, "Second request is served from cache");
+        
+        URLs.invalidate("geekhi");
+        URLStreamHandler h2 = f.createURLStreamHandler("geekhi");
+        assertNotNull(h2, "Handler found again");
+        assertNotSame(h2, h1, "Invalidation forces new lookup");
+        
+        assertNull(f.createURLStreamHandler("geeknone"), "No such protocol");
+        assertNull(f.createURLStreamHandler("geeknone"), "Miss is remembered");
+    }
+    
+    @Test
+    public void testConcurrentLookupResolvesOnce() throws Exception {
+        final GlobalProxyFactory f = new GlobalProxyFactory();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<URLStreamHandler>> arr = new ArrayList<Future<URLStreamHandler>>();
+            for (int i = 0; i < 16; i++) {
+                arr.add(pool.submit(new Callable<URLStreamHandler>() {
+                    @Override
+                    public URLStreamHandler call() throws Exception {
+                        start.await();
+                        return f.createURLStreamHandler("geekhi");
+                    }
+                }));
+            }
+            start.countDown();
+            URLStreamHandler first = arr.get(0).get();
+            assertNotNull(first, "Handler found");
+            for (Future<URLStreamHandler> h : arr) {
+                assertSame(h.get(), first, "All threads share the single resolved handler");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    @Test
+    public void testIndexListsAllRegistrations() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Zeta", 
+            "import java.net.URLStreamHandlerFactory;\n"
+            + "import java.net.URLStreamHandler;\n"
+            + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+            + "@URLProtocolRegistration(protocol={\"zeta\", \"alpha\"})\n"
+            + "public class Zeta implements URLStreamHandlerFactory {\n"
+            + "  public URLStreamHandler createURLStreamHandler(String protocol) "
+            + "{ return null; }\n"
+            + "}\n"
+        );
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Beta", 
+            "import java.net.URLConnection;\n"
+            + "import java.net.URL;\n"
+            + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+            + "@URLProtocolRegistration(protocol=\"beta\")\n"
+            + "public class Beta extends URLConnection {\n"
+            + "    public Beta(URL url) {\n"
+            + "        super(url);\n"
+            + "    }\n"
+            + "    public void connect() {\n"
+            + "    }\n"
+            + "}\n"
+        );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        boolean res = AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os);
+        assertTrue(res, "compilation succeeds:\n" + os);
+        
+        File index = new File(dir, GlobalProxyFactory.INDEX.replace('/', File.separatorChar));
+        assertTrue(index.isFile(), "Index generated");
+        String content = readFully(new FileInputStream(index));
+        assertEquals(content,
+            "# protocol kind class [handler] [position=n]\n"
+            + "alpha factory test.Zeta\n"
+            + "beta connection test.Beta test.Beta$handler\n"
+            + "zeta factory test.Zeta\n",
+            "Single sorted index for the whole compilation"
+        );
+    }
+    
+    private static final String FACTORY_SOURCE =
+        "import java.net.URLStreamHandlerFactory;\n"
+        + "import java.net.URLStreamHandler;\n"
+        + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+        + "@URLProtocolRegistration(protocol=\"%s\")\n"
+        + "public class %s implements URLStreamHandlerFactory {\n"
+        + "  public URLStreamHandler createURLStreamHandler(String protocol) "
+        + "{ return null; }\n"
+        + "}\n";
+    
+    @Test
+    public void testSameProtocolInTwoClasses() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.One", String.format(FACTORY_SOURCE, "same", "One"));
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Two", String.format(FACTORY_SOURCE, "same", "Two"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        boolean res = AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os);
+        assertTrue(res, "compilation succeeds:\n" + os);
+        
+        File same = new File(new File(new File(dir, "META-INF"), "urls"), "same");
+        assertEquals(readFully(new FileInputStream(same)), "test.One\ntest.Two\n", "Both registrations kept");
+    }
+    
+    @Test
+    public void testPositionOrdersRegistrations() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.One", String.format(FACTORY_SOURCE, "same", "One"));
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Two", 
+            String.format(FACTORY_SOURCE, "same", "Two").replace("\"same\")", "\"same\", position=10)")
+        );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        
+        File index = new File(dir, GlobalProxyFactory.INDEX.replace('/', File.separatorChar));
+        assertEquals(readFully(new FileInputStream(index)),
+            "# protocol kind class [handler] [position=n]\n"
+            + "same factory test.One\n"
+            + "same factory test.Two position=10\n"
+        );
+        File same = new File(new File(new File(dir, "META-INF"), "urls"), "same");
+        assertEquals(readFully(new FileInputStream(same)), "test.Two\ntest.One\n", "Positioned first");
+    }
+    
+    @Test
+    public void testRegistryOfManyProtocolsCompiles() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        StringBuilder protocols = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            protocols.append(i == 0 ? "" : "\", \"").append("many").append(i);
+        }
+        String code = String.format(FACTORY_SOURCE, protocols, "Many").replace(
+            "protocol=", "position=7, protocol={"
+        ).replace("\")\n", "\"})\n");
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Many", code);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        
+        ClassLoader l = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader());
+        ProtocolRegistry r = (ProtocolRegistry) l.loadClass("test.URLProtocolRegistration$registry").newInstance();
+        assertEquals(r.protocols().length, 10000);
+        assertEquals(r.positions("many9999"), new int[] { 7 });
+        assertEquals(r.positions("unknown").length, 0);
+        assertNull(r.create("many1234"), "The factory is consulted and returns null");
+    }
+    
+    @Test
+    public void testRegistryPackageIsDeterministic() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "zeta.Zeta", String.format(FACTORY_SOURCE, "aaa", "Zeta"));
+        AnnotationProcessorTestUtils.makeSource(dir, "alpha.Alpha", String.format(FACTORY_SOURCE, "zzz", "Alpha"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        
+        File services = new File(dir, "META-INF/services/" + ProtocolRegistry.class.getName());
+        assertEquals(readFully(new FileInputStream(services)), "alpha.URLProtocolRegistration$registry\n",
+            "First package, regardless of protocol names"
+        );
+    }
+    
+    @Test
+    public void testRegistryPackageFromOption() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "zeta.Zeta", String.format(FACTORY_SOURCE, "aaa", "Zeta"));
+        AnnotationProcessorTestUtils.makeSource(dir, "alpha.Alpha", String.format(FACTORY_SOURCE, "zzz", "Alpha"));
+        File gen = new File(dir.getParentFile(), "generated-" + dir.getName());
+        String[] args = {
+            "-classpath", dir.getAbsolutePath() + File.pathSeparatorChar + System.getProperty("java.class.path"),
+            "-d", dir.getAbsolutePath(),
+            "-s", gen.getAbsolutePath(),
+            "-A" + URLProtocolRegistrationProcessor.PACKAGE_OPTION + "=my.reg",
+            new File(new File(dir, "zeta"), "Zeta.java").getAbsolutePath(),
+            new File(new File(dir, "alpha"), "Alpha.java").getAbsolutePath()
+        };
+        gen.mkdirs();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertEquals(ToolProvider.getSystemJavaCompiler().run(null, null, os, args), 0, "compilation succeeds:\n" + os);
+        
+        File services = new File(dir, "META-INF/services/" + ProtocolRegistry.class.getName());
+        assertEquals(readFully(new FileInputStream(services)), "my.reg.URLProtocolRegistration$registry\n");
+        ClassLoader l = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader());
+        ProtocolRegistry r = (ProtocolRegistry) l.loadClass("my.reg.URLProtocolRegistration$registry").newInstance();
+        assertEquals(Arrays.asList(r.protocols()), Arrays.asList("aaa", "zzz"));
+        assertTrue(new File(dir, "META-INF/native-image/my.reg/reflect-config.json").isFile(), "Config next to the registry");
+    }
+    
+    @Test
+    public void testRegistryAndNativeImageConfigGenerated() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.One", String.format(FACTORY_SOURCE, "same", "One"));
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Two", String.format(FACTORY_SOURCE, "other", "Two"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        assertFalse(os.toString().contains("last round"), "Registry is not generated in the last round:\n" + os);
+        
+        File services = new File(dir, "META-INF/services/" + ProtocolRegistry.class.getName());
+        assertEquals(readFully(new FileInputStream(services)), "test.URLProtocolRegistration$registry\n");
+        ClassLoader l = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader());
+        ProtocolRegistry r = (ProtocolRegistry) l.loadClass("test.URLProtocolRegistration$registry").newInstance();
+        assertEquals(Arrays.asList(r.protocols()), Arrays.asList("other", "same"));
+        assertNull(r.create("same"), "The factory is consulted and returns null");
+        
+        File config = new File(dir, "META-INF/native-image/test");
+        String reflect = readFully(new FileInputStream(new File(config, "reflect-config.json")));
+        assertTrue(reflect.contains("\"test.One\""), reflect);
+        assertTrue(reflect.contains("\"test.URLProtocolRegistration$registry\""), reflect);
+        String resources = readFully(new FileInputStream(new File(config, "resource-config.json")));
+        assertTrue(resources.contains("META-INF/urls.index"), resources);
+    }
+    
+    @Test
+    public void testProviderForJDKGenerated() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Conn", 
+            "import java.net.URL;\n"
+            + "import java.net.URLConnection;\n"
+            + "import org.netbeans.geekout.demo.URLProtocolRegistration;\n"
+            + "@URLProtocolRegistration(protocol=\"provided\")\n"
+            + "public class Conn extends URLConnection {\n"
+            + "  public Conn(URL u) { super(u); }\n"
+            + "  public void connect() {}\n"
+            + "}\n"
+        );
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        
+        File services = new File(dir, "META-INF/services/java.net.spi.URLStreamHandlerProvider");
+        if (!services.exists()) {
+            throw new SkipException("URLStreamHandlerProvider needs JDK 9 or newer");
+        }
+        assertEquals(readFully(new FileInputStream(services)), "test.URLProtocolRegistration$provider\n");
+        ClassLoader l = new URLClassLoader(new URL[] { dir.toURI().toURL() }, URLsNGTest.class.getClassLoader());
+        Object provider = l.loadClass("test.URLProtocolRegistration$provider").newInstance();
+        Method create = provider.getClass().getMethod("createURLStreamHandler", String.class);
+        URLStreamHandler h = (URLStreamHandler) create.invoke(provider, "provided");
+        assertEquals(h.getClass().getName(), "test.Conn$handler");
+        assertNull(create.invoke(provider, "unknown"));
+    }
+    
+    @Test
+    public void testIncrementalCompilationMergesIndex() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Alpha", String.format(FACTORY_SOURCE, "alpha", "Alpha"));
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Beta", String.format(FACTORY_SOURCE, "beta", "Beta"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Beta", String.format(FACTORY_SOURCE, "gamma", "Beta"));
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, "Beta", dir, null, os), "recompilation succeeds:\n" + os);
+        
+        File index = new File(dir, GlobalProxyFactory.INDEX.replace('/', File.separatorChar));
+        assertEquals(readFully(new FileInputStream(index)),
+            "# protocol kind class [handler] [position=n]\n"
+            + "alpha factory test.Alpha\n"
+            + "gamma factory test.Beta\n",
+            "Alpha kept from previous compilation, Beta updated"
+        );
+    }
+    
+    @Test
+    public void testRecompilationReprocessesClassFiles() throws Exception {
+        File dir = AnnotationProcessorTestUtils.findEmptyDir();
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Alpha", String.format(FACTORY_SOURCE, "alpha", "Alpha"));
+        AnnotationProcessorTestUtils.makeSource(dir, "test.Beta", String.format(FACTORY_SOURCE, "beta", "Beta"));
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        assertTrue(AnnotationProcessorTestUtils.runJavac(dir, null, dir, null, os), "compilation succeeds:\n" + os);
+        
+        File alpha = new File(new File(dir, "test"), "Alpha.java");
+        assertTrue(alpha.delete(), "Only the class file of Alpha remains");
+        File gen = new File(dir.getParentFile(), "generated-" + dir.getName());
+        String[] args = {
+            "-classpath", dir.getAbsolutePath() + File.pathSeparatorChar + System.getProperty("java.class.path"),
+            "-d", dir.getAbsolutePath(),
+            "-s", gen.getAbsolutePath(),
+            "-processor", URLProtocolRegistrationProcessor.class.getName(),
+            new File(new File(dir, "test"), "Beta.java").getAbsolutePath(),
+            "test.Alpha"
+        };
+        assertEquals(ToolProvider.getSystemJavaCompiler().run(null, null, os, args), 0, "recompilation succeeds:\n" + os);
+        
+        File index = new File(dir, GlobalProxyFactory.INDEX.replace('/', File.separatorChar));
+        assertEquals(readFully(new FileInputStream(index)),
+            "# protocol kind class [handler] [position=n]\n"
+            + "alpha factory test.Alpha\n"
+            + "beta factory test.Beta\n",
+            "Registration of Alpha read from its class file, as aggregating processors are rerun"
+        );
+    }
     
     @Test
     public void testClassMustBePublic() throws IOException {
@@ -143,7 +1537,28 @@ public class URLsNGTest {
         }
     }
 
-    private String readFully(InputStream is) throws IOException {
+    public static final class FailingConnection extends URLConnection {
+        public FailingConnection(URL url) throws IOException {
+            super(url);
+            throw new IOException("Cannot connect to " + url.getHost());
+        }
+
+        @Override
+        public void connect() throws IOException {
+        }
+    }
+    
+    public static final class NoURLConnection extends URLConnection {
+        public NoURLConnection() {
+            super(null);
+        }
+
+        @Override
+        public void connect() throws IOException {
+        }
+    }
+
+    private static String readFully(InputStream is) throws IOException {
         StringBuilder sb = new StringBuilder();
         for (;;) {
             int ch = is.read();
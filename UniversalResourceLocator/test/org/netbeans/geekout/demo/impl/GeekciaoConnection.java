@@ -35,7 +35,7 @@ import org.netbeans.geekout.demo.URLProtocolRegistration;
  *
  * @author Jaroslav Tulach <jtulach@netbeans.org>
 */
-@URLProtocolRegistration(protocol="geekciao")
+@URLProtocolRegistration(protocol="geekciao", contentType="text/plain; charset=UTF-8")
 public class GeekciaoConnection extends URLConnection {
     private final ByteArrayInputStream is;
 
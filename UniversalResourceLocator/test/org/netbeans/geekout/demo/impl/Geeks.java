@@ -23,9 +23,6 @@
  */
 package org.netbeans.geekout.demo.impl;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import org.netbeans.geekout.demo.URLProtocolRegistration;
 
@@ -35,8 +32,7 @@ import org.netbeans.geekout.demo.URLProtocolRegistration;
 */
 public class Geeks {
     @URLProtocolRegistration(protocol="geekahoj")
-    public static InputStream sayAhoj(URL url) throws UnsupportedEncodingException {
-        String msg = "Ahoj " + url.getHost() + "!";
-        return new ByteArrayInputStream(msg.getBytes("UTF-8"));
+    public static String sayAhoj(URL url) {
+        return "Ahoj " + url.getHost() + "!";
     }
 }